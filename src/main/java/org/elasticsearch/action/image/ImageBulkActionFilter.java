@@ -0,0 +1,370 @@
+package org.elasticsearch.action.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionWriteResponse;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageDecoders;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.ImageFeatures;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extract the features of the images of a bulk request on the node receiving it, before the bulk is sent to the
+ * shards. Images of all documents are extracted in parallel on the {@code image_extract} pool, and each image value
+ * is replaced by an object holding the image and the byte representation of its features, so the mapper only reads
+ * the features instead of extracting them one document after the other on the bulk thread. The source of indexed
+ * documents then holds the features too. Images that fail to extract are left for the mapper, documents with an
+ * image the saturated pool can't take are rejected before reaching the shards, their bulk items fail with the
+ * rejection so clients retry them.
+ */
+public class ImageBulkActionFilter extends AbstractComponent implements ActionFilter {
+
+    private final boolean enabled;
+    private final ClusterService clusterService;
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+    private final ThreadPool threadPool;
+    private final ImageDecoder decoder;
+
+    @Inject
+    public ImageBulkActionFilter(Settings settings, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver, ThreadPool threadPool) {
+        super(settings);
+        this.enabled = settings.getAsBoolean("image.bulk.coordinating_extraction", false);
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.threadPool = threadPool;
+        this.decoder = ImageDecoders.create(settings);
+    }
+
+    @Override
+    public int order() {
+        return 0;
+    }
+
+    @Override
+    public void apply(final Task task, final String action, final ActionRequest request, final ActionListener listener, final ActionFilterChain chain) {
+        if (!enabled || !BulkAction.NAME.equals(action)) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+
+        final List<Document> documents = new ArrayList<>();
+        final List<Image> images = new ArrayList<>();
+        try {
+            ClusterState state = clusterService.state();
+            Map<Tuple<String, String>, Map<List<String>, Set<FeatureEnum>>> imageFields = new HashMap<>();
+            List<ActionRequest> items = ((BulkRequest) request).requests();
+            for (int i = 0; i < items.size(); i++) {
+                if (!(items.get(i) instanceof IndexRequest)) {
+                    continue;
+                }
+                IndexRequest indexRequest = (IndexRequest) items.get(i);
+                Tuple<String, String> key = new Tuple<>(indexRequest.index(), indexRequest.type());
+                Map<List<String>, Set<FeatureEnum>> fields = imageFields.get(key);
+                if (fields == null) {
+                    fields = imageFields(state, indexRequest);
+                    imageFields.put(key, fields);
+                }
+                if (fields.isEmpty() || indexRequest.source() == null) {
+                    continue;
+                }
+                Document document = new Document(i, indexRequest, XContentHelper.convertToMap(indexRequest.source(), true));
+                for (Map.Entry<List<String>, Set<FeatureEnum>> field : fields.entrySet()) {
+                    Image image = document.image(field.getKey(), field.getValue());
+                    if (image != null) {
+                        images.add(image);
+                    }
+                }
+                if (!document.images.isEmpty()) {
+                    documents.add(document);
+                }
+            }
+        } catch (Exception e) {  // leave the images to the mapper, which reports malformed sources
+            logger.debug("Failed to collect images of bulk request", e);
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+        if (images.isEmpty()) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final AtomicInteger pending = new AtomicInteger(images.size());
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                List<Document> rejected = new ArrayList<>();
+                for (Document document : documents) {
+                    if (document.rejected != null) {
+                        rejected.add(document);
+                        continue;
+                    }
+                    try {
+                        document.rewrite();
+                    } catch (Exception e) {
+                        logger.debug("Failed to rewrite images of document", e);
+                    }
+                }
+                if (rejected.isEmpty()) {
+                    chain.proceed(task, action, request, listener);
+                } else {
+                    proceedWithoutRejected(task, action, (BulkRequest) request, rejected, startTime, listener, chain);
+                }
+            }
+        };
+        Executor executor = threadPool.executor(ImageMapper.THREAD_POOL);
+        for (final Image image : images) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            image.extract();
+                        } catch (Throwable e) {
+                            logger.debug("Failed to extract features of image", e);
+                        } finally {
+                            if (pending.decrementAndGet() == 0) {
+                                done.run();
+                            }
+                        }
+                    }
+                });
+            } catch (EsRejectedExecutionException e) {  // pool saturated, the document is rejected before reaching the shards
+                image.document.rejected = e;
+                if (pending.decrementAndGet() == 0) {
+                    done.run();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        chain.proceed(action, response, listener);
+    }
+
+    /**
+     * Send the bulk request without the documents rejected by the saturated pool, their items fail with the rejection
+     * in the response at their position in the request
+     */
+    @SuppressWarnings("unchecked")
+    private void proceedWithoutRejected(Task task, String action, BulkRequest request, List<Document> rejected, final long startTime,
+                                        final ActionListener listener, ActionFilterChain chain) {
+        final List<ActionRequest> items = request.requests();
+        final BulkItemResponse[] responses = new BulkItemResponse[items.size()];
+        for (Document document : rejected) {
+            IndexRequest indexRequest = document.indexRequest;
+            responses[document.position] = new BulkItemResponse(document.position, indexRequest.opType().lowercase(),
+                    new BulkItemResponse.Failure(indexRequest.index(), indexRequest.type(), indexRequest.id(), document.rejected));
+        }
+        final BulkRequest accepted = new BulkRequest(request);
+        accepted.timeout(request.timeout());
+        accepted.consistencyLevel(request.consistencyLevel());
+        accepted.refresh(request.refresh());
+        for (int i = 0; i < items.size(); i++) {
+            if (responses[i] == null) {
+                accepted.add(items.get(i));
+            }
+        }
+        if (accepted.numberOfActions() == 0) {
+            listener.onResponse(new BulkResponse(responses, System.currentTimeMillis() - startTime));
+            return;
+        }
+        chain.proceed(task, action, accepted, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                int next = 0;
+                for (int i = 0; i < responses.length; i++) {
+                    if (responses[i] != null) {
+                        continue;
+                    }
+                    BulkItemResponse item = response.getItems()[next++];
+                    if (item.isFailed()) {
+                        responses[i] = new BulkItemResponse(i, item.getOpType(), item.getFailure());
+                    } else {
+                        ActionWriteResponse itemResponse = item.getResponse();
+                        responses[i] = new BulkItemResponse(i, item.getOpType(), itemResponse);
+                    }
+                }
+                listener.onResponse(new BulkResponse(responses, response.getTookInMillis()));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Path in the source of each image field of the mapping of the given request, with its features
+     */
+    private Map<List<String>, Set<FeatureEnum>> imageFields(ClusterState state, IndexRequest indexRequest) throws IOException {
+        Map<List<String>, Set<FeatureEnum>> fields = new LinkedHashMap<>();
+        IndexMetaData indexMetaData;
+        try {
+            indexMetaData = state.metaData().index(indexNameExpressionResolver.concreteSingleIndex(state, indexRequest));
+        } catch (Exception e) {  // index to be created or alias of several indices
+            return fields;
+        }
+        MappingMetaData mapping = indexMetaData == null ? null : indexMetaData.mapping(indexRequest.type());
+        if (mapping != null) {
+            collectImageFields(mapping.sourceAsMap(), new ArrayList<String>(), fields);
+        }
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void collectImageFields(Map<String, Object> mapping, List<String> path, Map<List<String>, Set<FeatureEnum>> fields) {
+        Object properties = mapping.get("properties");
+        if (!(properties instanceof Map)) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) properties).entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            Map<String, Object> fieldMapping = (Map<String, Object>) entry.getValue();
+            List<String> fieldPath = new ArrayList<>(path);
+            fieldPath.add(entry.getKey());
+            if (ImageMapper.CONTENT_TYPE.equals(fieldMapping.get("type"))) {
+                if (fieldMapping.get(ImageMapper.FEATURE) instanceof Map) {
+                    Set<FeatureEnum> featureEnums = EnumSet.noneOf(FeatureEnum.class);
+                    for (Object name : ((Map<String, Object>) fieldMapping.get(ImageMapper.FEATURE)).keySet()) {
+                        featureEnums.add(FeatureEnum.getByName(name.toString()));
+                    }
+                    fields.put(fieldPath, featureEnums);
+                }
+            } else {
+                collectImageFields(fieldMapping, fieldPath, fields);
+            }
+        }
+    }
+
+    /**
+     * Source of an index request with images
+     */
+    private final class Document {
+        private final int position;
+        private final IndexRequest indexRequest;
+        private final Tuple<XContentType, Map<String, Object>> source;
+        private final List<Image> images = new ArrayList<>();
+        private volatile EsRejectedExecutionException rejected;
+
+        Document(int position, IndexRequest indexRequest, Tuple<XContentType, Map<String, Object>> source) {
+            this.position = position;
+            this.indexRequest = indexRequest;
+            this.source = source;
+        }
+
+        /**
+         * Image at the given path of the source, null if there is no single base64 image there
+         */
+        @SuppressWarnings("unchecked")
+        Image image(List<String> path, Set<FeatureEnum> featureEnums) {
+            Map<String, Object> parent = source.v2();
+            for (int i = 0; i < path.size() - 1; i++) {
+                Object child = parent.get(path.get(i));
+                if (!(child instanceof Map)) {
+                    return null;
+                }
+                parent = (Map<String, Object>) child;
+            }
+            String name = path.get(path.size() - 1);
+            if (!(parent.get(name) instanceof String)) {
+                return null;
+            }
+            Image image = new Image(this, parent, name, (String) parent.get(name), featureEnums);
+            images.add(image);
+            return image;
+        }
+
+        /**
+         * Replace the extracted images in the source of the request
+         */
+        void rewrite() {
+            boolean rewritten = false;
+            for (Image image : images) {
+                rewritten |= image.rewrite();
+            }
+            if (rewritten) {
+                indexRequest.source(source.v2(), source.v1());
+            }
+        }
+    }
+
+    /**
+     * Base64 image value in a document source
+     */
+    private final class Image {
+        private final Document document;
+        private final Map<String, Object> parent;
+        private final String name;
+        private final String value;
+        private final Set<FeatureEnum> featureEnums;
+        private volatile Map<FeatureEnum, LireFeature> features;
+
+        Image(Document document, Map<String, Object> parent, String name, String value, Set<FeatureEnum> featureEnums) {
+            this.document = document;
+            this.parent = parent;
+            this.name = name;
+            this.value = value;
+            this.featureEnums = featureEnums;
+        }
+
+        void extract() throws IOException {
+            features = ImageFeatures.extract(decoder, Base64.decode(value), featureEnums);
+        }
+
+        boolean rewrite() {
+            if (features == null) {
+                return false;
+            }
+            Map<String, Object> featureBytes = new LinkedHashMap<>();
+            for (Map.Entry<FeatureEnum, LireFeature> entry : features.entrySet()) {
+                featureBytes.put(entry.getKey().name(), entry.getValue().getByteArrayRepresentation());
+            }
+            Map<String, Object> image = new LinkedHashMap<>();
+            image.put(ImageMapper.IMAGE, value);
+            image.put(ImageMapper.FEATURES, featureBytes);
+            parent.put(name, image);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.elasticsearch.action.image;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node level cache of the feature bytes of indexed images looked up by image queries, keyed by index, type, id,
+ * routing and feature field. Disabled by default: an image reindexed under the same id is only seen by lookups
+ * once its entry expires.
+ */
+public class ImageLookupCache extends AbstractComponent {
+
+    public static final String SIZE = "image.lookup_cache.size";
+    public static final String EXPIRE = "image.lookup_cache.expire";
+
+    private final Cache<List<String>, byte[]> cache;
+    private final long maxSizeInBytes;
+
+    @Inject
+    public ImageLookupCache(Settings settings) {
+        super(settings);
+        this.maxSizeInBytes = settings.getAsBytesSize(SIZE, new ByteSizeValue(0)).bytes();
+        TimeValue expire = settings.getAsTime(EXPIRE, TimeValue.timeValueMinutes(1));
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeInBytes)
+                .weigher(new Weigher<List<String>, byte[]>() {
+                    @Override
+                    public int weigh(List<String> key, byte[] value) {
+                        int weight = value.length;
+                        for (String part : key) {
+                            weight += part == null ? 0 : part.length() * 2;
+                        }
+                        return weight;
+                    }
+                })
+                .expireAfterWrite(expire.millis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public boolean enabled() {
+        return maxSizeInBytes > 0;
+    }
+
+    /**
+     * Cached feature bytes of the given field of a document, null if not cached
+     */
+    public byte[] get(String index, String type, String id, String routing, String field) {
+        return enabled() ? cache.getIfPresent(key(index, type, id, routing, field)) : null;
+    }
+
+    public void put(String index, String type, String id, String routing, String field, byte[] bytes) {
+        if (enabled()) {
+            cache.put(key(index, type, id, routing, field), bytes);
+        }
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long count() {
+        return cache.size();
+    }
+
+    public long maxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static List<String> key(String index, String type, String id, String routing, String field) {
+        return Arrays.asList(index, type, id, routing, field);
+    }
+}
@@ -0,0 +1,395 @@
+package org.elasticsearch.action.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Provider;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.query.image.ImageFeatures;
+import org.elasticsearch.index.query.image.ImageQueryParser;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolve the features of image queries once on the coordinating node, before the search is sent to the shards.
+ * The image of each query is replaced by the byte representation of its features in {@code feature_bytes}, so
+ * shards only read the features instead of decoding and extracting the image again. Images are extracted on the
+ * {@code image_extract} pool, not on the thread delivering the request. Queries looking up an indexed
+ * image are resolved by a single asynchronous multi get for the whole search, optionally cached by
+ * {@link ImageLookupCache}, instead of a blocking get on every shard. Lookups that fail are left for the shards.
+ */
+public class ImageSearchActionFilter extends AbstractComponent implements ActionFilter {
+
+    private static final String[] LOOKUP_PARAMS = {"index", "type", "id", "path", "routing"};
+
+    private final boolean enabled;
+    private final ImageFeatureCache featureCache;
+    private final ImageLookupCache lookupCache;
+    private final Provider<Client> clientProvider;
+    private final ThreadPool threadPool;
+
+    @Inject
+    public ImageSearchActionFilter(Settings settings, ImageFeatureCache featureCache, ImageLookupCache lookupCache, Provider<Client> clientProvider,
+                                   ThreadPool threadPool) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.enabled = settings.getAsBoolean("image.search.coordinating_extraction", true);
+        this.featureCache = featureCache;
+        this.lookupCache = lookupCache;
+        this.clientProvider = clientProvider;  // the client depends on action filters, get it once actions are bound
+    }
+
+    @Override
+    public int order() {
+        return 0;
+    }
+
+    @Override
+    public void apply(final Task task, final String action, final ActionRequest request, final ActionListener listener, final ActionFilterChain chain) {
+        if (!enabled || !SearchAction.NAME.equals(action)) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+
+        final SearchRequest searchRequest = (SearchRequest) request;
+        final Tuple<XContentType, Map<String, Object>> source;
+        final List<Map<String, Object>> queries = new ArrayList<>();
+        try {
+            BytesReference bytes = searchRequest.source();
+            if (bytes == null || bytes.length() == 0) {
+                chain.proceed(task, action, request, listener);
+                return;
+            }
+            source = XContentHelper.convertToMap(bytes, true);
+            collectImageQueries(source.v2(), queries);
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        if (queries.isEmpty()) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+        if (!hasImage(queries)) {
+            resolve(task, action, searchRequest, source, queries, listener, chain);
+            return;
+        }
+
+        // decode and extract images off the thread delivering the request, which is a network thread for rest requests
+        try {
+            threadPool.executor(ImageMapper.THREAD_POOL).execute(new Runnable() {
+                @Override
+                public void run() {
+                    resolve(task, action, searchRequest, source, queries, listener, chain);
+                }
+            });
+        } catch (EsRejectedExecutionException e) {  // pool saturated, leave the images to the shards
+            chain.proceed(task, action, request, listener);
+        }
+    }
+
+    private static boolean hasImage(List<Map<String, Object>> queries) {
+        for (Map<String, Object> query : queries) {
+            if (query.get("image") != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrite the image queries of the search, with a multi get for those looking up an image, then proceed
+     */
+    private void resolve(final Task task, final String action, final SearchRequest searchRequest, final Tuple<XContentType, Map<String, Object>> source,
+                         List<Map<String, Object>> queries, final ActionListener listener, final ActionFilterChain chain) {
+        final List<Lookup> lookups = new ArrayList<>();
+        boolean rewritten = false;
+        try {
+            for (Map<String, Object> query : queries) {
+                if (rewriteImageQuery(query)) {
+                    rewritten = true;
+                    continue;
+                }
+                Lookup lookup = lookup(query, searchRequest);
+                if (lookup == null) {
+                    continue;
+                }
+                if (lookup.rewriteCached()) {
+                    rewritten = true;
+                } else {
+                    lookups.add(lookup);
+                }
+            }
+            if (lookups.isEmpty()) {
+                if (rewritten) {
+                    setSource(searchRequest, source);
+                }
+                chain.proceed(task, action, searchRequest, listener);
+                return;
+            }
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+
+        MultiGetRequest multiGetRequest = new MultiGetRequest();
+        multiGetRequest.realtime(false);
+        for (Lookup lookup : lookups) {
+            multiGetRequest.add(new MultiGetRequest.Item(lookup.index, lookup.type, lookup.id).routing(lookup.routing).fields(lookup.fieldNames()));
+        }
+        final boolean rewrittenBeforeLookup = rewritten;
+        clientProvider.get().multiGet(multiGetRequest, new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                try {
+                    MultiGetItemResponse[] items = response.getResponses();
+                    for (int i = 0; i < items.length; i++) {
+                        if (!items[i].isFailed() && items[i].getResponse().isExists()) {
+                            lookups.get(i).rewrite(items[i].getResponse());
+                        }
+                    }
+                    setSource(searchRequest, source);
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                chain.proceed(task, action, searchRequest, listener);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {  // leave the lookups to the shards
+                try {
+                    if (rewrittenBeforeLookup) {
+                        setSource(searchRequest, source);
+                    }
+                } catch (Exception inner) {
+                    listener.onFailure(inner);
+                    return;
+                }
+                chain.proceed(task, action, searchRequest, listener);
+            }
+        });
+    }
+
+    @Override
+    public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        chain.proceed(action, response, listener);
+    }
+
+    private static void setSource(SearchRequest searchRequest, Tuple<XContentType, Map<String, Object>> source) throws IOException {
+        searchRequest.source(XContentFactory.contentBuilder(source.v1()).map(source.v2()).bytes());
+    }
+
+    /**
+     * Collect the body of every image query in the given part of the search source
+     */
+    @SuppressWarnings("unchecked")
+    private static void collectImageQueries(Object node, List<Map<String, Object>> queries) {
+        if (node instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) node).entrySet()) {
+                if (ImageQueryParser.NAME.equals(entry.getKey()) && entry.getValue() instanceof Map) {
+                    for (Object query : ((Map<String, Object>) entry.getValue()).values()) {
+                        if (query instanceof Map) {
+                            queries.add((Map<String, Object>) query);
+                        }
+                    }
+                }
+                collectImageQueries(entry.getValue(), queries);
+            }
+        } else if (node instanceof List) {
+            for (Object item : (List<Object>) node) {
+                collectImageQueries(item, queries);
+            }
+        }
+    }
+
+    private boolean rewriteImageQuery(Map<String, Object> query) {
+        Object image = query.get("image");
+        if (!(image instanceof String) && !(image instanceof byte[])) {
+            return false;
+        }
+        Set<FeatureEnum> featureEnums = queryFeatures(query);
+        if (featureEnums == null) {
+            return false;
+        }
+
+        byte[] bytes;
+        if (image instanceof byte[]) {
+            bytes = (byte[]) image;
+        } else {
+            try {
+                bytes = Base64.decode((String) image);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        Map<String, Object> featureBytes = new LinkedHashMap<>();
+        for (Map.Entry<FeatureEnum, LireFeature> entry : featureCache.features(bytes, featureEnums).entrySet()) {
+            featureBytes.put(entry.getKey().name(), entry.getValue().getByteArrayRepresentation());
+        }
+        query.remove("image");
+        query.put("feature_bytes", featureBytes);
+        return true;
+    }
+
+    /**
+     * Lookup of the indexed image of the given query, null if the query doesn't look up an image or its index
+     * can't be resolved before the search is sent to the shards
+     */
+    private Lookup lookup(Map<String, Object> query, SearchRequest searchRequest) {
+        if (query.containsKey("image") || query.containsKey("feature_bytes")
+                || query.get("type") == null || query.get("id") == null || query.get("path") == null) {
+            return null;
+        }
+        String index;
+        if (query.get("index") != null) {
+            index = query.get("index").toString();
+        } else if (searchRequest.indices() != null && searchRequest.indices().length == 1
+                && !Regex.isSimpleMatchPattern(searchRequest.indices()[0]) && !searchRequest.indices()[0].contains(",")) {
+            index = searchRequest.indices()[0];  // default of the query parser is the index of the shard
+        } else {
+            return null;
+        }
+        Set<FeatureEnum> featureEnums = queryFeatures(query);
+        if (featureEnums == null) {
+            return null;
+        }
+        return new Lookup(query, index, query.get("type").toString(), query.get("id").toString(), query.get("path").toString(),
+                query.get("routing") == null ? null : query.get("routing").toString(), featureEnums);
+    }
+
+    /**
+     * Features needed by the given query, null if there are none or a feature is unknown, which is left for the
+     * query parser to report
+     */
+    private static Set<FeatureEnum> queryFeatures(Map<String, Object> query) {
+        Set<FeatureEnum> featureEnums = EnumSet.noneOf(FeatureEnum.class);
+        try {
+            if (query.get("feature") != null) {
+                featureEnums.add(FeatureEnum.getByName(query.get("feature").toString()));
+            }
+            addFeatures(featureEnums, query.get("features"));
+            addFeatures(featureEnums, query.get("rerank"));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return featureEnums.isEmpty() ? null : featureEnums;
+    }
+
+    private static void addFeatures(Set<FeatureEnum> featureEnums, Object weights) {
+        if (weights instanceof Map) {
+            for (Object name : ((Map<?, ?>) weights).keySet()) {
+                featureEnums.add(FeatureEnum.getByName(name.toString()));
+            }
+        }
+    }
+
+    /**
+     * Image query looking up the features of an indexed image
+     */
+    private final class Lookup {
+        private final Map<String, Object> query;
+        private final String index;
+        private final String type;
+        private final String id;
+        private final String path;
+        private final String routing;
+        private final Set<FeatureEnum> featureEnums;
+
+        Lookup(Map<String, Object> query, String index, String type, String id, String path, String routing, Set<FeatureEnum> featureEnums) {
+            this.query = query;
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.path = path;
+            this.routing = routing;
+            this.featureEnums = featureEnums;
+        }
+
+        String fieldName(FeatureEnum featureEnum) {
+            return path + "." + featureEnum.name();
+        }
+
+        String[] fieldNames() {
+            String[] fieldNames = new String[featureEnums.size()];
+            int i = 0;
+            for (FeatureEnum featureEnum : featureEnums) {
+                fieldNames[i++] = fieldName(featureEnum);
+            }
+            return fieldNames;
+        }
+
+        /**
+         * Rewrite the query if all its features are cached
+         */
+        boolean rewriteCached() {
+            Map<String, Object> featureBytes = new LinkedHashMap<>();
+            for (FeatureEnum featureEnum : featureEnums) {
+                byte[] bytes = lookupCache.get(index, type, id, routing, fieldName(featureEnum));
+                if (bytes == null) {
+                    return false;
+                }
+                featureBytes.put(featureEnum.name(), bytes);
+            }
+            rewrite(featureBytes);
+            return true;
+        }
+
+        /**
+         * Rewrite the query with the features of the found document, unless it misses one of them
+         */
+        void rewrite(GetResponse getResponse) {
+            Map<String, Object> featureBytes = new LinkedHashMap<>();
+            for (FeatureEnum featureEnum : featureEnums) {
+                GetField getField = getResponse.getField(fieldName(featureEnum));
+                if (getField == null) {
+                    return;
+                }
+                featureBytes.put(featureEnum.name(), ImageFeatures.read(featureEnum, getField.getValue()).getByteArrayRepresentation());
+            }
+            for (Map.Entry<String, Object> entry : featureBytes.entrySet()) {
+                lookupCache.put(index, type, id, routing, path + "." + entry.getKey(), (byte[]) entry.getValue());
+            }
+            rewrite(featureBytes);
+        }
+
+        private void rewrite(Map<String, Object> featureBytes) {
+            for (String param : LOOKUP_PARAMS) {
+                query.remove(param);
+            }
+            query.put("feature_bytes", featureBytes);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Bits sampled by {@link BitSamplingHashFunctions} packed into longs, stored as big endian bytes in doc values.
+ * Codes are compared by Hamming distance.
+ */
+public final class BitCode {
+
+    private BitCode() {
+    }
+
+    /**
+     * Max number of bits of a code, a multiple of 64 not higher than the number of sampled bits
+     */
+    public static int maxLength(BitSamplingHashFunctions functions) {
+        return (functions.numFunctions() * functions.bits()) & ~63;
+    }
+
+    /**
+     * Pack the first length bits of the given hashes of {@link BitSamplingHashFunctions} with the given bits per hash
+     */
+    public static long[] encode(int[] bitSamplingHashes, int bits, int length) {
+        long[] code = new long[length >>> 6];
+        for (int i = 0; i < length; i++) {
+            if (((bitSamplingHashes[i / bits] >>> (i % bits)) & 1) != 0) {
+                code[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+        return code;
+    }
+
+    public static byte[] toBytes(long[] code) {
+        byte[] bytes = new byte[code.length << 3];
+        for (int i = 0; i < code.length; i++) {
+            long word = code[i];
+            for (int j = 0; j < 8; j++) {
+                bytes[(i << 3) + j] = (byte) (word >>> (56 - (j << 3)));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Hamming distance between the query code and the code stored in the given doc value,
+     * or -1 if the doc has no code of the same length
+     */
+    public static int distance(long[] query, BytesRef bytesRef) {
+        if (bytesRef.length != query.length << 3) {
+            return -1;
+        }
+        final byte[] bytes = bytesRef.bytes;
+        int offset = bytesRef.offset;
+        int distance = 0;
+        for (long q : query) {
+            long word = ((bytes[offset] & 0xFFL) << 56) | ((bytes[offset + 1] & 0xFFL) << 48)
+                    | ((bytes[offset + 2] & 0xFFL) << 40) | ((bytes[offset + 3] & 0xFFL) << 32)
+                    | ((bytes[offset + 4] & 0xFFL) << 24) | ((bytes[offset + 5] & 0xFFL) << 16)
+                    | ((bytes[offset + 6] & 0xFFL) << 8) | (bytes[offset + 7] & 0xFFL);
+            distance += Long.bitCount(word ^ q);
+            offset += 8;
+        }
+        return distance;
+    }
+}
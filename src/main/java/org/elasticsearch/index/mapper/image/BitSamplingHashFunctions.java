@@ -0,0 +1,182 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Hash functions of {@link HashEnum#BIT_SAMPLING}, each function samples bits random hyperplanes and
+ * sets bit k of its hash when the projection of the vector on hyperplane k is not lower than its threshold.
+ * Thresholds are 0 unless trained on the indexed vectors, see {@link #medianThresholds(Iterable)}.
+ * <p>
+ * The default functions are read from {@link ImageMapper#BIT_SAMPLING_FILE} on first use and give the same
+ * hashes as {@link BitSampling}. Generated functions are derived from a seed, hyperplane coefficients are
+ * generated per dimension in order, so they are extended as needed for longer feature vectors.
+ */
+public final class BitSamplingHashFunctions implements HashFunctions {
+
+    private static final double W = 4d;
+
+    private static final class DefaultHolder {
+        private static final BitSamplingHashFunctions DEFAULT = readDefault();
+    }
+
+    private final int numFunctions;
+    private final int bits;
+    private final Long seed;  // null for functions read from file
+    private final double[] thresholds;  // null if all thresholds are 0
+    private volatile double[][][] hyperplanes;
+
+    private BitSamplingHashFunctions(double[][][] hyperplanes, int bits) {
+        this.numFunctions = hyperplanes.length;
+        this.bits = bits;
+        this.seed = null;
+        this.thresholds = null;
+        this.hyperplanes = hyperplanes;
+    }
+
+    private BitSamplingHashFunctions(int numFunctions, int bits, long seed, double[] thresholds) {
+        this.numFunctions = numFunctions;
+        this.bits = bits;
+        this.seed = seed;
+        this.thresholds = thresholds;
+        this.hyperplanes = new double[numFunctions][bits][0];
+    }
+
+    /**
+     * Functions of {@link ImageMapper#BIT_SAMPLING_FILE}, same as the ones used by {@link BitSampling}
+     */
+    public static BitSamplingHashFunctions defaults() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * Functions generated from the given seed, the same parameters always give the same functions.
+     * Thresholds are indexed by function * bits + bit, null means all thresholds are 0.
+     */
+    public static BitSamplingHashFunctions generate(int numFunctions, int bits, long seed, double[] thresholds) {
+        return new BitSamplingHashFunctions(numFunctions, bits, seed, thresholds);
+    }
+
+    private static BitSamplingHashFunctions readDefault() {
+        try (InputStream is = BitSamplingHashFunctions.class.getResourceAsStream(ImageMapper.BIT_SAMPLING_FILE);
+             ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(is))) {
+            int bits = ois.readInt();
+            int dimensions = ois.readInt();
+            int numFunctions = ois.readInt();
+            double[][][] hyperplanes = new double[numFunctions][bits][dimensions];
+            for (double[][] function : hyperplanes) {
+                for (double[] hyperplane : function) {
+                    for (int j = 0; j < dimensions; j++) {
+                        hyperplane[j] = ois.readFloat();
+                    }
+                }
+            }
+            return new BitSamplingHashFunctions(hyperplanes, bits);
+        } catch (IOException e) {
+            throw new ElasticsearchImageProcessException("Failed to read hash functions " + ImageMapper.BIT_SAMPLING_FILE, e);
+        }
+    }
+
+    @Override
+    public int numFunctions() {
+        return numFunctions;
+    }
+
+    /**
+     * Number of bits of each hash
+     */
+    public int bits() {
+        return bits;
+    }
+
+    @Override
+    public int[] hashes(double[] vector) {
+        double[][][] hyperplanes = hyperplanes(vector.length);
+        int[] hashes = new int[numFunctions];
+        for (int i = 0; i < numFunctions; i++) {
+            int hash = 0;
+            for (int k = 0; k < bits; k++) {
+                double[] hyperplane = hyperplanes[i][k];
+                double product = 0;
+                for (int j = 0; j < vector.length; j++) {
+                    product += hyperplane[j] * vector[j];
+                }
+                if (product >= (thresholds == null ? 0 : thresholds[i * bits + k])) {
+                    hash |= 1 << k;
+                }
+            }
+            hashes[i] = hash;
+        }
+        return hashes;
+    }
+
+    /**
+     * Threshold of each hyperplane, indexed by function * bits + bit, such that half of the given vectors
+     * are on each side. Balanced bits spread skewed data over all hash values.
+     */
+    public double[] medianThresholds(Iterable<double[]> vectors) {
+        List<double[]> projections = new ArrayList<>();
+        for (double[] vector : vectors) {
+            double[][][] hyperplanes = hyperplanes(vector.length);
+            double[] projection = new double[numFunctions * bits];
+            for (int i = 0; i < numFunctions; i++) {
+                for (int k = 0; k < bits; k++) {
+                    double[] hyperplane = hyperplanes[i][k];
+                    double product = 0;
+                    for (int j = 0; j < vector.length; j++) {
+                        product += hyperplane[j] * vector[j];
+                    }
+                    projection[i * bits + k] = product;
+                }
+            }
+            projections.add(projection);
+        }
+
+        double[] thresholds = new double[numFunctions * bits];
+        if (projections.isEmpty()) {
+            return thresholds;
+        }
+        double[] column = new double[projections.size()];
+        for (int h = 0; h < thresholds.length; h++) {
+            for (int n = 0; n < column.length; n++) {
+                column[n] = projections.get(n)[h];
+            }
+            Arrays.sort(column);
+            int middle = column.length >> 1;
+            thresholds[h] = (column.length & 1) == 1 ? column[middle] : (column[middle - 1] + column[middle]) / 2;
+        }
+        return thresholds;
+    }
+
+    private double[][][] hyperplanes(int dimensions) {
+        double[][][] hyperplanes = this.hyperplanes;
+        if (seed == null || hyperplanes[0][0].length >= dimensions) {
+            return hyperplanes;
+        }
+        synchronized (this) {
+            hyperplanes = this.hyperplanes;
+            if (hyperplanes[0][0].length < dimensions) {
+                hyperplanes = new double[numFunctions][bits][dimensions];
+                for (int i = 0; i < numFunctions; i++) {
+                    for (int k = 0; k < bits; k++) {
+                        Random random = new Random(seed * 0x9E3779B97F4A7C15L + i * bits + k);
+                        for (int j = 0; j < dimensions; j++) {
+                            hyperplanes[i][k][j] = random.nextDouble() * W - W / 2;
+                        }
+                    }
+                }
+                this.hyperplanes = hyperplanes;
+            }
+            return hyperplanes;
+        }
+    }
+}
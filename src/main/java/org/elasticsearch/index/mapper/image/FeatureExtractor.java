@@ -0,0 +1,148 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.Extractor;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
+import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Extract the features of one image, sharing work between the features.
+ * <p>
+ * The image is converted once to the 8 bit BGR raster most LIRE extractors read, they convert any other raster to a
+ * copy of their own per feature. JCD is the join of CEDD and FCTH, it's derived from them when either of them is also
+ * extracted instead of extracting both again.
+ */
+public final class FeatureExtractor {
+
+    private static final ConcurrentMap<FeatureEnum, Integer> VECTOR_LENGTHS = new ConcurrentHashMap<>();
+
+    private FeatureExtractor() {
+    }
+
+    /**
+     * The image in the raster shared by the extractors of all features, the image itself when already in that raster
+     */
+    public static BufferedImage sharedImage(BufferedImage img) {
+        if (img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            return img;
+        }
+        BufferedImage shared = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics graphics = shared.getGraphics();
+        try {
+            graphics.drawImage(img, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return shared;
+    }
+
+    /**
+     * Whether the feature is derived from other extracted features, see {@link #derive}, instead of extracted itself
+     */
+    public static boolean derived(FeatureEnum featureEnum, Set<FeatureEnum> featureEnums) {
+        return featureEnum == FeatureEnum.JCD && (featureEnums.contains(FeatureEnum.CEDD) || featureEnums.contains(FeatureEnum.FCTH));
+    }
+
+    /**
+     * Whether all the given features are available from the given ones, directly or derived, without the image
+     */
+    public static boolean complete(Set<FeatureEnum> featureEnums, Set<FeatureEnum> available) {
+        for (FeatureEnum featureEnum : featureEnums) {
+            if (!available.contains(featureEnum)
+                    && !(featureEnum == FeatureEnum.JCD && available.contains(FeatureEnum.CEDD) && available.contains(FeatureEnum.FCTH))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a feature read from a byte representation not extracted here looks like an extracted feature: the
+     * representation reads and writes back the same, and the vector is as long as the vector of the feature extracted
+     * from any image, with only finite values
+     */
+    public static boolean valid(FeatureEnum featureEnum, LireFeature lireFeature, byte[] bytes, int offset, int length) {
+        if (!Arrays.equals(Arrays.copyOfRange(bytes, offset, offset + length), lireFeature.getByteArrayRepresentation())) {
+            return false;
+        }
+        double[] vector = lireFeature.getFeatureVector();
+        if (vector == null || vector.length != vectorLength(featureEnum)) {
+            return false;
+        }
+        for (double value : vector) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int vectorLength(FeatureEnum featureEnum) {
+        Integer length = VECTOR_LENGTHS.get(featureEnum);
+        if (length == null) {
+            try {
+                length = extract(featureEnum, new BufferedImage(8, 8, BufferedImage.TYPE_3BYTE_BGR)).getFeatureVector().length;
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to extract feature " + featureEnum.name(), e);
+            }
+            VECTOR_LENGTHS.putIfAbsent(featureEnum, length);
+        }
+        return length;
+    }
+
+    /**
+     * Extract the feature from the shared image
+     */
+    public static LireFeature extract(FeatureEnum featureEnum, BufferedImage sharedImage) throws Exception {
+        LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+        ((Extractor) lireFeature).extract(sharedImage);
+        return lireFeature;
+    }
+
+    /**
+     * Derive the feature from the features already extracted, the missing ones are extracted from the shared image
+     * and added to the extracted features
+     */
+    public static LireFeature derive(FeatureEnum featureEnum, Map<FeatureEnum, LireFeature> extracted, BufferedImage sharedImage) throws Exception {
+        assert featureEnum == FeatureEnum.JCD;
+        LireFeature cedd = extracted.get(FeatureEnum.CEDD);
+        if (cedd == null) {
+            cedd = extract(FeatureEnum.CEDD, sharedImage);
+            extracted.put(FeatureEnum.CEDD, cedd);
+        }
+        LireFeature fcth = extracted.get(FeatureEnum.FCTH);
+        if (fcth == null) {
+            fcth = extract(FeatureEnum.FCTH, sharedImage);
+            extracted.put(FeatureEnum.FCTH, fcth);
+        }
+        return new JCD((CEDD) cedd, (FCTH) fcth);
+    }
+
+    /**
+     * Extract all the given features from the decoded image into the map
+     */
+    public static void extractAll(BufferedImage img, Set<FeatureEnum> featureEnums, Map<FeatureEnum, LireFeature> features) throws Exception {
+        BufferedImage sharedImage = sharedImage(img);
+        for (FeatureEnum featureEnum : featureEnums) {
+            if (!derived(featureEnum, featureEnums)) {
+                features.put(featureEnum, extract(featureEnum, sharedImage));
+            }
+        }
+        for (FeatureEnum featureEnum : featureEnums) {
+            if (derived(featureEnum, featureEnums)) {
+                features.put(featureEnum, derive(featureEnum, new EnumMap<>(features), sharedImage));
+            }
+        }
+    }
+}
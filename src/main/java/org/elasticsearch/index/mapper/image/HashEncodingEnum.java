@@ -0,0 +1,43 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * How hash values are written to the terms of a hash field
+ */
+public enum HashEncodingEnum {
+
+    /**
+     * Decimal strings separated by whitespace and tokenized by the whitespace analyzer
+     */
+    STRING {
+        @Override
+        public BytesRef term(int hash) {
+            return new BytesRef(Integer.toString(hash));
+        }
+    },
+
+    /**
+     * Fixed width big endian 4 byte terms, indexed directly without analysis
+     */
+    BINARY {
+        @Override
+        public BytesRef term(int hash) {
+            byte[] bytes = new byte[4];
+            bytes[0] = (byte) (hash >>> 24);
+            bytes[1] = (byte) (hash >>> 16);
+            bytes[2] = (byte) (hash >>> 8);
+            bytes[3] = (byte) hash;
+            return new BytesRef(bytes);
+        }
+    };
+
+    /**
+     * Term of the given hash value
+     */
+    public abstract BytesRef term(int hash);
+
+    public static HashEncodingEnum getByName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+}
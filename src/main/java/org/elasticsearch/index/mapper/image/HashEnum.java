@@ -1,10 +1,302 @@
 package org.elasticsearch.index.mapper.image;
 
 
+import org.elasticsearch.ElasticsearchGenerationException;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.util.*;
+
+@SuppressWarnings("unchecked")
 public enum HashEnum {
-    BIT_SAMPLING, LSH;
+    BIT_SAMPLING {
+        @Override
+        public Map<String, Object> parseParams(Map<String, Object> params) {
+            Map<String, Object> parsed = new HashMap<>();
+            int functions = intParam(params, FUNCTIONS, 100, 1, 1000);
+            int bits = intParam(params, BITS, 12, 1, 31);
+            parsed.put(FUNCTIONS, functions);
+            parsed.put(BITS, bits);
+            parsed.put(SEED, longParam(params, SEED));
+            parsed.put(VERSION, intParam(params, VERSION, 0, 0, Integer.MAX_VALUE));
+            if (params.containsKey(THRESHOLDS)) {
+                Object thresholdsVal = params.get(THRESHOLDS);
+                if (!(thresholdsVal instanceof List) || ((List) thresholdsVal).size() != functions * bits) {
+                    throw new ElasticsearchGenerationException("Hash parameter [" + THRESHOLDS + "] must be a list of functions * bits numbers");
+                }
+                List<Double> thresholds = new ArrayList<>(functions * bits);
+                for (Object threshold : (List) thresholdsVal) {
+                    thresholds.add(XContentMapValues.nodeDoubleValue(threshold));
+                }
+                parsed.put(THRESHOLDS, thresholds);
+            }
+            checkUnknownParams(params, parsed);
+            return parsed;
+        }
+
+        @Override
+        public HashFunctions functions(Map<String, Object> params) {
+            if (params == null) {
+                return BitSamplingHashFunctions.defaults();
+            }
+            double[] thresholds = null;
+            if (params.containsKey(THRESHOLDS)) {
+                List<Double> thresholdList = (List<Double>) params.get(THRESHOLDS);
+                thresholds = new double[thresholdList.size()];
+                for (int i = 0; i < thresholds.length; i++) {
+                    thresholds[i] = thresholdList.get(i);
+                }
+            }
+            return BitSamplingHashFunctions.generate((Integer) params.get(FUNCTIONS), (Integer) params.get(BITS), (Long) params.get(SEED), thresholds);
+        }
+
+        @Override
+        public boolean trainable() {
+            return true;
+        }
+
+        @Override
+        public Map<String, Object> train(Map<String, Object> params, List<double[]> vectors, long seed) {
+            Map<String, Object> untrained = new HashMap<>(params);
+            untrained.remove(THRESHOLDS);
+            List<Double> thresholds = new ArrayList<>();
+            for (double threshold : ((BitSamplingHashFunctions) functions(untrained)).medianThresholds(vectors)) {
+                thresholds.add(threshold);
+            }
+            Map<String, Object> trained = new HashMap<>(untrained);
+            trained.put(THRESHOLDS, thresholds);
+            return trained;
+        }
+    },
+
+    LSH {
+        @Override
+        public Map<String, Object> parseParams(Map<String, Object> params) {
+            Map<String, Object> parsed = new HashMap<>();
+            parsed.put(FUNCTIONS, intParam(params, FUNCTIONS, 50, 1, 1000));
+            Object bucketWidth = params.get(BUCKET_WIDTH);
+            double width = bucketWidth == null ? 10d : XContentMapValues.nodeDoubleValue(bucketWidth);
+            if (!(width > 0)) {
+                throw new ElasticsearchGenerationException("Hash parameter [" + BUCKET_WIDTH + "] must be positive");
+            }
+            parsed.put(BUCKET_WIDTH, width);
+            parsed.put(SEED, longParam(params, SEED));
+            parsed.put(VERSION, intParam(params, VERSION, 0, 0, Integer.MAX_VALUE));
+            checkUnknownParams(params, parsed);
+            return parsed;
+        }
+
+        @Override
+        public HashFunctions functions(Map<String, Object> params) {
+            if (params == null) {
+                return LshHashFunctions.defaults();
+            }
+            return LshHashFunctions.generate((Integer) params.get(FUNCTIONS), (Double) params.get(BUCKET_WIDTH), (Long) params.get(SEED));
+        }
+    },
+
+    IVF {
+        @Override
+        public Map<String, Object> parseParams(Map<String, Object> params) {
+            Map<String, Object> parsed = new HashMap<>();
+            int lists = intParam(params, LISTS, 256, 1, IvfPqFunctions.MAX_LISTS);
+            int subvectors = intParam(params, SUBVECTORS, 8, 1, IvfPqFunctions.MAX_SUBVECTORS);
+            parsed.put(LISTS, lists);
+            parsed.put(SUBVECTORS, subvectors);
+            parsed.put(VERSION, intParam(params, VERSION, 0, 0, Integer.MAX_VALUE));
+            if (params.containsKey(CENTROIDS) || params.containsKey(CODEBOOKS)) {
+                List<List<Double>> centroids = doubleLists(params.get(CENTROIDS), CENTROIDS);
+                if (centroids.size() != lists) {
+                    throw new ElasticsearchGenerationException("Hash parameter [" + CENTROIDS + "] must have one centroid per list");
+                }
+                Object codebooksVal = params.get(CODEBOOKS);
+                if (!(codebooksVal instanceof List) || ((List) codebooksVal).size() != subvectors) {
+                    throw new ElasticsearchGenerationException("Hash parameter [" + CODEBOOKS + "] must have one codebook per subvector");
+                }
+                List<List<List<Double>>> codebooks = new ArrayList<>(subvectors);
+                for (Object codebook : (List) codebooksVal) {
+                    List<List<Double>> codewords = doubleLists(codebook, CODEBOOKS);
+                    if (codewords.isEmpty() || codewords.size() > IvfPqFunctions.MAX_CODEWORDS) {
+                        throw new ElasticsearchGenerationException("Hash parameter [" + CODEBOOKS + "] must have 1 to " + IvfPqFunctions.MAX_CODEWORDS + " codewords per subvector");
+                    }
+                    codebooks.add(codewords);
+                }
+                long values = 0;
+                for (List<Double> centroid : centroids) {
+                    values += centroid.size();
+                }
+                for (List<List<Double>> codewords : codebooks) {
+                    for (List<Double> codeword : codewords) {
+                        values += codeword.size();
+                    }
+                }
+                if (values > IvfPqFunctions.MAX_MODEL_VALUES) {
+                    throw new ElasticsearchGenerationException("Hash parameters [" + CENTROIDS + "] and [" + CODEBOOKS + "] must have at most "
+                            + IvfPqFunctions.MAX_MODEL_VALUES + " values");
+                }
+                parsed.put(CENTROIDS, centroids);
+                parsed.put(CODEBOOKS, codebooks);
+            }
+            checkUnknownParams(params, parsed);
+            return parsed;
+        }
+
+        @Override
+        public HashFunctions functions(Map<String, Object> params) {
+            if (!trained(params)) {
+                throw new IllegalStateException(name() + " hash functions are not trained");
+            }
+            List<List<Double>> centroidLists = (List<List<Double>>) params.get(CENTROIDS);
+            List<List<List<Double>>> codebookLists = (List<List<List<Double>>>) params.get(CODEBOOKS);
+            double[][] centroids = toArray(centroidLists);
+            double[][][] codebooks = new double[codebookLists.size()][][];
+            for (int s = 0; s < codebooks.length; s++) {
+                codebooks[s] = toArray(codebookLists.get(s));
+            }
+            return new IvfPqFunctions(centroids, codebooks);
+        }
+
+        @Override
+        public boolean trained(Map<String, Object> params) {
+            return params != null && params.containsKey(CENTROIDS);
+        }
+
+        @Override
+        public boolean trainable() {
+            return true;
+        }
+
+        @Override
+        public Map<String, Object> train(Map<String, Object> params, List<double[]> vectors, long seed) {
+            IvfPqFunctions functions = IvfPqFunctions.train(vectors, (Integer) params.get(LISTS), (Integer) params.get(SUBVECTORS), seed);
+            Map<String, Object> trained = new HashMap<>(params);
+            trained.put(CENTROIDS, toLists(functions.centroids()));
+            List<List<List<Double>>> codebooks = new ArrayList<>();
+            for (double[][] codebook : functions.codebooks()) {
+                codebooks.add(toLists(codebook));
+            }
+            trained.put(CODEBOOKS, codebooks);
+            return trained;
+        }
+    };
+
+    public static final String FUNCTIONS = "functions";
+    public static final String BITS = "bits";
+    public static final String BUCKET_WIDTH = "bucket_width";
+    public static final String SEED = "seed";
+    public static final String VERSION = "version";
+    public static final String THRESHOLDS = "thresholds";
+    public static final String LISTS = "lists";
+    public static final String SUBVECTORS = "subvectors";
+    public static final String CENTROIDS = "centroids";
+    public static final String CODEBOOKS = "codebooks";
 
     public static HashEnum getByName(String name) {
         return valueOf(name.toUpperCase());
     }
+
+    /**
+     * Validate the hash parameters of a mapping and fill in defaults
+     */
+    public abstract Map<String, Object> parseParams(Map<String, Object> params);
+
+    /**
+     * Hash functions for the given parsed parameters, or the default functions if params is null. Functions of
+     * parameters are created on each call, the field type of each image field creates them once per mapping.
+     */
+    public abstract HashFunctions functions(Map<String, Object> params);
+
+    /**
+     * Whether functions can be created from the given parsed parameters, false for functions that need training
+     * which are not trained yet
+     */
+    public boolean trained(Map<String, Object> params) {
+        return true;
+    }
+
+    /**
+     * Whether the functions can be trained on the indexed feature vectors, see {@link #train(Map, List, long)}
+     */
+    public boolean trainable() {
+        return false;
+    }
+
+    /**
+     * Parameters trained on the given feature vectors, the given parsed parameters are not modified
+     */
+    public Map<String, Object> train(Map<String, Object> params, List<double[]> vectors, long seed) {
+        throw new IllegalArgumentException(name() + " hash functions can not be trained");
+    }
+
+    /**
+     * Version of the given parsed parameters, hashes of different versions are indexed in different fields
+     */
+    public static int version(Map<String, Object> params) {
+        return params == null ? 0 : (Integer) params.get(VERSION);
+    }
+
+    private static int intParam(Map<String, Object> params, String name, int defaultValue, int min, int max) {
+        Object value = params.get(name);
+        int intValue = value == null ? defaultValue : XContentMapValues.nodeIntegerValue(value);
+        if (intValue < min || intValue > max) {
+            throw new ElasticsearchGenerationException("Hash parameter [" + name + "] must be between " + min + " and " + max);
+        }
+        return intValue;
+    }
+
+    private static long longParam(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        return value == null ? 0L : XContentMapValues.nodeLongValue(value);
+    }
+
+    private static List<List<Double>> doubleLists(Object value, String name) {
+        if (!(value instanceof List)) {
+            throw new ElasticsearchGenerationException("Hash parameter [" + name + "] must be a list of vectors");
+        }
+        List<List<Double>> lists = new ArrayList<>();
+        int dimensions = -1;
+        for (Object vector : (List) value) {
+            if (!(vector instanceof List) || (dimensions != -1 && ((List) vector).size() != dimensions)) {
+                throw new ElasticsearchGenerationException("Hash parameter [" + name + "] must be a list of vectors of the same length");
+            }
+            dimensions = ((List) vector).size();
+            List<Double> doubles = new ArrayList<>(dimensions);
+            for (Object d : (List) vector) {
+                doubles.add(XContentMapValues.nodeDoubleValue(d));
+            }
+            lists.add(doubles);
+        }
+        return lists;
+    }
+
+    private static double[][] toArray(List<List<Double>> lists) {
+        double[][] array = new double[lists.size()][];
+        for (int i = 0; i < array.length; i++) {
+            List<Double> list = lists.get(i);
+            array[i] = new double[list.size()];
+            for (int j = 0; j < array[i].length; j++) {
+                array[i][j] = list.get(j);
+            }
+        }
+        return array;
+    }
+
+    private static List<List<Double>> toLists(double[][] array) {
+        List<List<Double>> lists = new ArrayList<>(array.length);
+        for (double[] vector : array) {
+            List<Double> list = new ArrayList<>(vector.length);
+            for (double d : vector) {
+                list.add(d);
+            }
+            lists.add(list);
+        }
+        return lists;
+    }
+
+    private static void checkUnknownParams(Map<String, Object> params, Map<String, Object> parsed) {
+        for (String name : params.keySet()) {
+            if (!parsed.containsKey(name)) {
+                throw new ElasticsearchGenerationException("Unknown hash parameter [" + name + "]");
+            }
+        }
+    }
 }
@@ -0,0 +1,11 @@
+package org.elasticsearch.index.mapper.image;
+
+/**
+ * A family of hash functions, maps a feature vector to one hash value per function
+ */
+public interface HashFunctions {
+
+    int numFunctions();
+
+    int[] hashes(double[] vector);
+}
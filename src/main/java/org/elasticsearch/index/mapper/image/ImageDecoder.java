@@ -0,0 +1,16 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Decodes indexed images and images to search before feature extraction, see {@link ImageDecoders} to plug in an
+ * implementation
+ */
+public interface ImageDecoder {
+
+    /**
+     * Decoded image scaled to at most the given max dimension, null if the image format is not supported
+     */
+    BufferedImage decode(byte[] bytes, int maxDimension) throws IOException;
+}
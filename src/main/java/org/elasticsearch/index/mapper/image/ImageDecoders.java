@@ -0,0 +1,28 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Create the {@link ImageDecoder} of the given settings. {@code image.decoder.type} is the class name of a custom
+ * decoder with a public constructor taking the settings, by default images are decoded by {@link ImageIODecoder}.
+ */
+public final class ImageDecoders {
+
+    public static final String TYPE = "image.decoder.type";
+
+    private ImageDecoders() {
+    }
+
+    public static ImageDecoder create(Settings settings) {
+        String type = settings.get(TYPE);
+        if (type == null) {
+            return new ImageIODecoder(settings);
+        }
+        try {
+            Class<?> decoderClass = Class.forName(type, true, ImageDecoders.class.getClassLoader());
+            return (ImageDecoder) decoderClass.getConstructor(Settings.class).newInstance(settings);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to create image decoder [" + type + "]", e);
+        }
+    }
+}
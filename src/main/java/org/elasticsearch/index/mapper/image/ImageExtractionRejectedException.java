@@ -0,0 +1,20 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * An image to index rejected because the image extract pool is saturated. It's a parsing exception so document
+ * parsing doesn't wrap it as a malformed document, with the status of a rejected execution so clients retry later.
+ */
+public class ImageExtractionRejectedException extends MapperParsingException {
+
+    public ImageExtractionRejectedException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+
+    @Override
+    public RestStatus status() {
+        return RestStatus.TOO_MANY_REQUESTS;
+    }
+}
@@ -0,0 +1,111 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.lucene.BytesRefs;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParseContext;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Hash field of a feature with {@link HashEncodingEnum#BINARY} hash encoding. The hash values of the image, given
+ * as external value, are indexed as fixed width terms without analysis, and hash values searched on the field are
+ * turned into the same terms.
+ */
+public class ImageHashMapper extends FieldMapper {
+
+    public static final String CONTENT_TYPE = "image_hash";
+
+    public static class Defaults {
+
+        public static final ImageHashFieldType FIELD_TYPE = new ImageHashFieldType();
+
+        static {
+            FIELD_TYPE.setIndexOptions(IndexOptions.DOCS);
+            FIELD_TYPE.setTokenized(false);
+            FIELD_TYPE.setOmitNorms(true);
+            FIELD_TYPE.setStored(false);
+            FIELD_TYPE.freeze();
+        }
+    }
+
+    public static final class ImageHashFieldType extends MappedFieldType {
+
+        public ImageHashFieldType() {
+        }
+
+        protected ImageHashFieldType(ImageHashFieldType ref) {
+            super(ref);
+        }
+
+        /**
+         * Term of a hash value
+         */
+        public BytesRef term(int hash) {
+            return HashEncodingEnum.BINARY.term(hash);
+        }
+
+        @Override
+        public BytesRef indexedValueForSearch(Object value) {
+            if (value instanceof Number) {
+                return term(((Number) value).intValue());
+            }
+            return term(Integer.parseInt(BytesRefs.toString(value)));
+        }
+
+        @Override
+        public ImageHashFieldType clone() {
+            return new ImageHashFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return CONTENT_TYPE;
+        }
+    }
+
+    public static class Builder extends FieldMapper.Builder<Builder, ImageHashMapper> {
+
+        public Builder(String name) {
+            super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
+            this.builder = this;
+        }
+
+        @Override
+        public ImageHashMapper build(BuilderContext context) {
+            setupFieldType(context);
+            return new ImageHashMapper(name, fieldType, defaultFieldType, context.indexSettings(), multiFieldsBuilder.build(this, context), copyTo);
+        }
+    }
+
+    protected ImageHashMapper(String simpleName, MappedFieldType fieldType, MappedFieldType defaultFieldType, Settings indexSettings,
+                              MultiFields multiFields, CopyTo copyTo) {
+        super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
+    }
+
+    @Override
+    public ImageHashFieldType fieldType() {
+        return (ImageHashFieldType) super.fieldType();
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<Field> fields) throws IOException {
+        if (!context.externalValueSet() || !(context.externalValue() instanceof int[])) {
+            throw new MapperParsingException("Hash field [" + fieldType().names().fullName() + "] is only indexed by its image field");
+        }
+        for (int hash : (int[]) context.externalValue()) {
+            fields.add(new Field(fieldType().names().indexName(), fieldType().term(hash), fieldType()));
+        }
+    }
+
+    @Override
+    protected String contentType() {
+        return CONTENT_TYPE;
+    }
+}
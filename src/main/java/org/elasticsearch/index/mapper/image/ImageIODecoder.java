@@ -0,0 +1,133 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.settings.Settings;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decode images with ImageIO readers to at most a max dimension.
+ * <p>
+ * The format is recognized by the magic bytes of the image, readers of common formats are created once per format
+ * and thread and reused, instead of looking up the service registry and creating a reader per image. The size is
+ * read from the image header first: images of more pixels than {@code image.decoder.max_pixels} are rejected
+ * before any pixel is decoded, large images are decoded with source subsampling so only every n-th pixel of every
+ * n-th row is kept, n chosen so the decoded image is still at least the max dimension. Pixels are decoded to
+ * {@link BufferedImage#TYPE_3BYTE_BGR} when the reader supports it, the raster shared by feature extraction, see
+ * {@link FeatureExtractor#sharedImage}.
+ */
+public class ImageIODecoder implements ImageDecoder {
+
+    public static final String MAX_PIXELS = "image.decoder.max_pixels";
+
+    public static final long DEFAULT_MAX_PIXELS = 100000000L;
+
+    private static final ThreadLocal<Map<String, ImageReader>> READERS = new ThreadLocal<Map<String, ImageReader>>() {
+        @Override
+        protected Map<String, ImageReader> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    private final long maxPixels;
+
+    public ImageIODecoder(Settings settings) {
+        this.maxPixels = settings.getAsLong(MAX_PIXELS, DEFAULT_MAX_PIXELS);
+    }
+
+    @Override
+    public BufferedImage decode(byte[] bytes, int maxDimension) throws IOException {
+        BufferedImage img;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            String format = format(bytes);
+            ImageReader reader = format == null ? null : pooledReader(format);
+            boolean pooled = reader != null;
+            if (reader == null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                reader = readers.next();
+            }
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > maxPixels) {
+                    throw new ElasticsearchImageProcessException("Image of " + width + "x" + height + " pixels exceeds [" + MAX_PIXELS + "] of " + maxPixels);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(width, height) / maxDimension;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                while (types.hasNext()) {
+                    ImageTypeSpecifier type = types.next();
+                    if (type.getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+                        param.setDestinationType(type);
+                        break;
+                    }
+                }
+                img = reader.read(0, param);
+            } finally {
+                if (pooled) {
+                    reader.reset();
+                } else {
+                    reader.dispose();
+                }
+            }
+        }
+        if (Math.max(img.getHeight(), img.getWidth()) > maxDimension) {
+            img = ImageUtils.scaleImage(img, maxDimension);
+        }
+        return img;
+    }
+
+    /**
+     * Reader of the given format owned by the current thread, null if no reader supports the format
+     */
+    private static ImageReader pooledReader(String format) {
+        Map<String, ImageReader> readers = READERS.get();
+        ImageReader reader = readers.get(format);
+        if (reader == null) {
+            Iterator<ImageReader> iterator = ImageIO.getImageReadersByFormatName(format);
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            reader = iterator.next();
+            readers.put(format, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Format of common images by their magic bytes, null if unknown
+     */
+    static String format(byte[] bytes) {
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xD8 && (bytes[2] & 0xFF) == 0xFF) {
+            return "jpeg";
+        } else if (bytes.length >= 4 && (bytes[0] & 0xFF) == 0x89 && bytes[1] == 'P' && bytes[2] == 'N' && bytes[3] == 'G') {
+            return "png";
+        } else if (bytes.length >= 4 && bytes[0] == 'G' && bytes[1] == 'I' && bytes[2] == 'F' && bytes[3] == '8') {
+            return "gif";
+        } else if (bytes.length >= 2 && bytes[0] == 'B' && bytes[1] == 'M') {
+            return "bmp";
+        } else if (bytes.length >= 4 && ((bytes[0] == 'I' && bytes[1] == 'I' && bytes[2] == 42 && bytes[3] == 0)
+                || (bytes[0] == 'M' && bytes[1] == 'M' && bytes[2] == 0 && bytes[3] == 42))) {
+            return "tiff";
+        }
+        return null;
+    }
+}
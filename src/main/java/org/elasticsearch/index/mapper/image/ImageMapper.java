@@ -1,21 +1,19 @@
 package org.elasticsearch.index.mapper.image;
 
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
-import net.semanticmetadata.lire.imageanalysis.features.Extractor;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchGenerationException;
 import org.elasticsearch.ElasticsearchImageProcessException;
@@ -24,16 +22,19 @@ import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.CollectionUtils;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.analysis.AnalyzerScope;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.mapper.*;
+import org.elasticsearch.index.query.image.ImageFeatures;
 import org.elasticsearch.threadpool.ThreadPool;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,6 +45,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.elasticsearch.index.mapper.MapperBuilders.binaryField;
 import static org.elasticsearch.index.mapper.MapperBuilders.stringField;
@@ -57,23 +59,30 @@ public class ImageMapper extends FieldMapper {
 
     public static final String CONTENT_TYPE = "image";
 
+    public static final String THREAD_POOL = "image_extract";
+
     public static final String HASH = "hash";
 
+    public static final String HASH_ENCODING = "hash_encoding";
+
+    public static final String BIT_CODE = "bit_code";
+
+    public static final String HASH_PARAMS = "hash_params";
+
+    public static final String PQ_CODE = "pq_code";
+
+    public static final String GRAPH = "graph";
+    public static final String GRAPH_M = "m";
+    public static final String GRAPH_EF_CONSTRUCTION = "ef_construction";
+
     public static final String FEATURE = "feature";
+    public static final String FEATURES = "features";
+    public static final String IMAGE = "image";
     public static final String METADATA = "metadata";
 
     public static final String BIT_SAMPLING_FILE = "/hash/LshBitSampling.obj";
     public static final String LSH_HASH_FILE = "/hash/lshHashFunctions.obj";
 
-    static {
-        try {
-            BitSampling.readHashFunctions(ImageMapper.class.getResourceAsStream(BIT_SAMPLING_FILE));
-            LocalitySensitiveHashing.readHashFunctions(ImageMapper.class.getResourceAsStream(LSH_HASH_FILE));
-        } catch (IOException e) {
-            logger.error("Failed to initialize hash function", e);
-        }
-    }
-
     public static class Defaults {
 
         public static final ImageFieldType FIELD_TYPE = new ImageFieldType();
@@ -86,13 +95,149 @@ public class ImageMapper extends FieldMapper {
         }
     }
 
-    static final class ImageFieldType extends MappedFieldType {
+    public static final class ImageFieldType extends MappedFieldType {
+
+        private Map<FeatureEnum, Map<String, Object>> features = Collections.emptyMap();
+
+        // functions of the hash parameters in mapping, created once per mapping instead of per document or query
+        private Map<FeatureEnum, Map<HashEnum, HashFunctions>> hashFunctions = Collections.emptyMap();
 
         public ImageFieldType() {
         }
 
         protected ImageFieldType(ImageFieldType ref) {
             super(ref);
+            this.features = ref.features;
+            this.hashFunctions = ref.hashFunctions;
+        }
+
+        public void setFeatures(Map<FeatureEnum, Map<String, Object>> features) {
+            checkIfFrozen();
+            this.features = Collections.unmodifiableMap(new HashMap<>(features));
+            Map<FeatureEnum, Map<HashEnum, HashFunctions>> hashFunctions = new EnumMap<>(FeatureEnum.class);
+            for (Map.Entry<FeatureEnum, Map<String, Object>> entry : features.entrySet()) {
+                Map<HashEnum, HashFunctions> functions = new EnumMap<>(HashEnum.class);
+                for (HashEnum hashEnum : HashEnum.values()) {
+                    Map<String, Object> hashParams = ImageMapper.hashParams(entry.getValue(), hashEnum);
+                    if (hashParams != null && hashEnum.trained(hashParams)) {
+                        functions.put(hashEnum, hashEnum.functions(hashParams));
+                    }
+                }
+                hashFunctions.put(entry.getKey(), functions);
+            }
+            this.hashFunctions = hashFunctions;
+        }
+
+        /**
+         * Whether the given feature is extracted and indexed for this field
+         */
+        public boolean hasFeature(FeatureEnum featureEnum) {
+            return features.containsKey(featureEnum);
+        }
+
+        /**
+         * Hash encoding of the given feature, {@link HashEncodingEnum#STRING} if not set in mapping
+         */
+        public HashEncodingEnum hashEncoding(FeatureEnum featureEnum) {
+            Map<String, Object> featureMap = features.get(featureEnum);
+            return featureMap == null ? HashEncodingEnum.STRING : ImageMapper.hashEncoding(featureMap);
+        }
+
+        /**
+         * Hash functions of the given feature and hash, the default functions if not set in mapping
+         */
+        public HashFunctions hashFunctions(FeatureEnum featureEnum, HashEnum hashEnum) {
+            Map<HashEnum, HashFunctions> functions = hashFunctions.get(featureEnum);
+            HashFunctions hashFunctions = functions == null ? null : functions.get(hashEnum);
+            return hashFunctions == null ? hashEnum.functions(null) : hashFunctions;
+        }
+
+        /**
+         * Name of the hash field of the given feature and hash relative to the image field
+         */
+        public String hashFieldName(FeatureEnum featureEnum, HashEnum hashEnum) {
+            Map<String, Object> featureMap = features.get(featureEnum);
+            return ImageMapper.hashFieldName(featureEnum.name(), hashEnum, featureMap == null ? Collections.<String, Object>emptyMap() : featureMap);
+        }
+
+        /**
+         * Parsed parameters of the given feature and hash, null if not set in mapping
+         */
+        public Map<String, Object> hashParams(FeatureEnum featureEnum, HashEnum hashEnum) {
+            Map<String, Object> featureMap = features.get(featureEnum);
+            return featureMap == null ? null : ImageMapper.hashParams(featureMap, hashEnum);
+        }
+
+        /**
+         * Name of the doc values field of the {@link HashEnum#IVF} product quantizer codes of the given feature
+         * relative to the image field
+         */
+        public String pqCodeFieldName(FeatureEnum featureEnum) {
+            return hashFieldName(featureEnum, HashEnum.IVF) + "." + PQ_CODE;
+        }
+
+        /**
+         * Number of bits of the bit code of the given feature, 0 if the feature has no bit code
+         */
+        public int bitCodeLength(FeatureEnum featureEnum) {
+            Map<String, Object> featureMap = features.get(featureEnum);
+            return featureMap == null ? 0 : ImageMapper.bitCodeLength(featureMap);
+        }
+
+        /**
+         * Parsed graph parameters of the given feature, null if the feature has no graph
+         */
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> graphParams(FeatureEnum featureEnum) {
+            Map<String, Object> featureMap = features.get(featureEnum);
+            return featureMap == null ? null : (Map<String, Object>) featureMap.get(GRAPH);
+        }
+
+        /**
+         * Features can be added but not removed, their hash encoding and bit code can't change, and their hash
+         * parameters only change with a higher version, whose hashes are indexed in a new field
+         */
+        @Override
+        public void checkCompatibility(MappedFieldType fieldType, List<String> conflicts, boolean strict) {
+            super.checkCompatibility(fieldType, conflicts, strict);
+            if (!(fieldType instanceof ImageFieldType)) {
+                return;
+            }
+            Map<FeatureEnum, Map<String, Object>> otherFeatures = ((ImageFieldType) fieldType).features;
+            for (Map.Entry<FeatureEnum, Map<String, Object>> entry : features.entrySet()) {
+                String featureName = entry.getKey().name();
+                Map<String, Object> featureMap = entry.getValue();
+                Map<String, Object> otherFeatureMap = otherFeatures.get(entry.getKey());
+                if (otherFeatureMap == null) {
+                    conflicts.add("mapper [" + names().fullName() + "] can't remove feature [" + featureName + "]");
+                    continue;
+                }
+                if (ImageMapper.hashEncoding(featureMap) != ImageMapper.hashEncoding(otherFeatureMap)) {
+                    conflicts.add("mapper [" + names().fullName() + "] has different [" + HASH_ENCODING + "] for feature [" + featureName + "]");
+                }
+                if (ImageMapper.bitCodeLength(featureMap) != ImageMapper.bitCodeLength(otherFeatureMap)) {
+                    conflicts.add("mapper [" + names().fullName() + "] has different [" + BIT_CODE + "] for feature [" + featureName + "]");
+                }
+                for (HashEnum hashEnum : HashEnum.values()) {
+                    Map<String, Object> hashParams = ImageMapper.hashParams(featureMap, hashEnum);
+                    Map<String, Object> otherHashParams = ImageMapper.hashParams(otherFeatureMap, hashEnum);
+                    if (!Objects.equals(hashParams, otherHashParams) && HashEnum.version(otherHashParams) <= HashEnum.version(hashParams)) {
+                        conflicts.add("mapper [" + names().fullName() + "] has different [" + HASH_PARAMS + "] for feature [" + featureName
+                                + "] and hash [" + hashEnum.name() + "] without a higher [" + HashEnum.VERSION + "]");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!super.equals(o)) return false;
+            return features.equals(((ImageFieldType) o).features);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + features.hashCode();
         }
 
         @Override
@@ -161,9 +306,14 @@ public class ImageMapper extends FieldMapper {
                 // add hash mapper if hash is required
                 if (featureMap.containsKey(HASH)) {
                     List<String> hashes = (List<String>) featureMap.get(HASH);
+                    HashEncodingEnum hashEncoding = hashEncoding(featureMap);
                     for (String h : hashes) {
-                        String hashFieldName = featureName + "." + HASH + "." + h;
-                        hashMappers.put(hashFieldName, stringField(hashFieldName).store(true).includeInAll(false).index(true).indexAnalyzer(analyzer).build(context));
+                        String hashFieldName = hashFieldName(featureName, HashEnum.valueOf(h), featureMap);
+                        if (hashEncoding == HashEncodingEnum.BINARY) {
+                            hashMappers.put(hashFieldName, new ImageHashMapper.Builder(hashFieldName).build(context));
+                        } else {
+                            hashMappers.put(hashFieldName, stringField(hashFieldName).store(true).includeInAll(false).index(true).indexAnalyzer(analyzer).build(context));
+                        }
                     }
                 }
             }
@@ -194,6 +344,7 @@ public class ImageMapper extends FieldMapper {
             }
 
             defaultFieldType.freeze();
+            ((ImageFieldType) this.fieldType).setFeatures(features);
             this.setupFieldType(context);
             return new ImageMapper(name, threadPool, context.indexSettings(), features, featureMappers, hashMappers, metadataMappers,
                     fieldType, defaultFieldType, multiFieldsBuilder.build(this, context), copyTo);
@@ -201,9 +352,13 @@ public class ImageMapper extends FieldMapper {
     }
 
     public static class TypeParser implements Mapper.TypeParser {
-        private ThreadPool threadPool;
+        private volatile ThreadPool threadPool;
 
-        public TypeParser(ThreadPool threadPool) {
+        /**
+         * The node thread pool is injected once the node is created, before any mapping is parsed
+         */
+        @Inject
+        public void setThreadPool(ThreadPool threadPool) {
             this.threadPool = threadPool;
         }
 
@@ -253,6 +408,51 @@ public class ImageMapper extends FieldMapper {
                     featureMap.put(HASH, hashes);
                 }
 
+                // process hash encoding for each feature
+                if (featureMap.containsKey(HASH_ENCODING)) {
+                    Object hashEncodingVal = featureMap.get(HASH_ENCODING);
+                    if (!(hashEncodingVal instanceof String)) {
+                        throw new ElasticsearchGenerationException("Malformed hash encoding value");
+                    }
+                    featureMap.put(HASH_ENCODING, HashEncodingEnum.getByName((String) hashEncodingVal).name());
+                }
+
+                // process hash function parameters for each feature
+                if (featureMap.containsKey(HASH_PARAMS)) {
+                    Object hashParamsVal = featureMap.get(HASH_PARAMS);
+                    if (!(hashParamsVal instanceof Map)) {
+                        throw new ElasticsearchGenerationException("Malformed hash params value");
+                    }
+                    Map<String, Object> hashParams = new HashMap<>();
+                    for (Map.Entry<String, Object> hashEntry : ((Map<String, Object>) hashParamsVal).entrySet()) {
+                        if (!(hashEntry.getValue() instanceof Map)) {
+                            throw new ElasticsearchGenerationException("Malformed hash params value");
+                        }
+                        HashEnum hashEnum = HashEnum.getByName(hashEntry.getKey());
+                        hashParams.put(hashEnum.name(), hashEnum.parseParams((Map<String, Object>) hashEntry.getValue()));
+                    }
+                    featureMap.put(HASH_PARAMS, hashParams);
+                }
+
+                // process bit code for each feature
+                if (featureMap.containsKey(BIT_CODE)) {
+                    int bitCodeLength = XContentMapValues.nodeIntegerValue(featureMap.get(BIT_CODE));
+                    int maxBitCodeLength = BitCode.maxLength((BitSamplingHashFunctions) HashEnum.BIT_SAMPLING.functions(hashParams(featureMap, HashEnum.BIT_SAMPLING)));
+                    if (bitCodeLength < 64 || bitCodeLength % 64 != 0 || bitCodeLength > maxBitCodeLength) {
+                        throw new ElasticsearchGenerationException("Bit code must be a multiple of 64 between 64 and " + maxBitCodeLength);
+                    }
+                    featureMap.put(BIT_CODE, bitCodeLength);
+                }
+
+                // process graph for each feature
+                if (featureMap.containsKey(GRAPH)) {
+                    Object graphVal = featureMap.get(GRAPH);
+                    if (!(graphVal instanceof Map)) {
+                        throw new ElasticsearchGenerationException("Malformed graph value");
+                    }
+                    featureMap.put(GRAPH, parseGraphParams((Map<String, Object>) graphVal));
+                }
+
                 FeatureEnum featureEnum = FeatureEnum.getByName(feature);
                 builder.addFeature(featureEnum, featureMap);
             }
@@ -276,6 +476,8 @@ public class ImageMapper extends FieldMapper {
 
     private final Settings settings;
 
+    private final ImageDecoder decoder;
+
     private volatile ImmutableOpenMap<FeatureEnum, Map<String, Object>> features = ImmutableOpenMap.of();
 
     private volatile ImmutableOpenMap<String, FieldMapper> featureMappers = ImmutableOpenMap.of();
@@ -291,6 +493,7 @@ public class ImageMapper extends FieldMapper {
         this.name = name;
         this.threadPool = threadPool;
         this.settings = settings;
+        this.decoder = ImageDecoders.create(settings);
         if (features != null) {
             this.features = ImmutableOpenMap.builder(this.features).putAll(features).build();
         }
@@ -313,74 +516,65 @@ public class ImageMapper extends FieldMapper {
     @Override
     public Mapper parse(ParseContext context) throws IOException {
         byte[] content = null;
+        final Map<FeatureEnum, LireFeature> featureExtractMap = new ConcurrentHashMap<>();
 
         XContentParser parser = context.parser();
         XContentParser.Token token = parser.currentToken();
         if (token == XContentParser.Token.VALUE_STRING) {
             content = parser.binaryValue();
+        } else if (token == XContentParser.Token.START_OBJECT) {  // features already extracted, with or without the image
+            String currentFieldName = null;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if (IMAGE.equals(currentFieldName) && token == XContentParser.Token.VALUE_STRING) {
+                    content = parser.binaryValue();
+                } else if (FEATURES.equals(currentFieldName) && token == XContentParser.Token.START_OBJECT) {
+                    parseFeatures(parser, featureExtractMap);
+                } else {
+                    throw new MapperParsingException("Unknown image value [" + currentFieldName + "]");
+                }
+            }
         }
 
-        if (content == null) {
+        final Set<FeatureEnum> featureEnums = EnumSet.noneOf(FeatureEnum.class);
+        for (ObjectCursor<FeatureEnum> cursor : features.keys()) {
+            featureEnums.add(cursor.value);
+        }
+        // the image is only needed if some feature is not given
+        final boolean complete = FeatureExtractor.complete(featureEnums, featureExtractMap.keySet());
+        if (content == null && !complete) {
             throw new MapperParsingException("No content is provided.");
         }
 
         final Boolean useThreadPool = settings.getAsBoolean("index.image.use_thread_pool", true);
         final Boolean ignoreMetadataError = settings.getAsBoolean("index.image.ignore_metadata_error", true);
 
-        final SecurityManager sm = System.getSecurityManager();
-        if (sm != null) {
-            sm.checkPermission(new SpecialPermission());
-        }
-        final byte[] finalContent = content;
-        BufferedImage img = AccessController.doPrivileged(new PrivilegedAction<BufferedImage>() {
-            @Override
-            public BufferedImage run() {
-                try (InputStream input = new ByteBufferStreamInput(ByteBuffer.wrap(finalContent))) {
-                    return ImageIO.read(input);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+        final Set<FeatureEnum> extractedEnums = EnumSet.noneOf(FeatureEnum.class);
+        for (FeatureEnum featureEnum : featureEnums) {
+            if (!featureExtractMap.containsKey(featureEnum) && !FeatureExtractor.derived(featureEnum, featureEnums)) {
+                extractedEnums.add(featureEnum);
             }
-        });
-        if (Math.max(img.getHeight(), img.getWidth()) > MAX_IMAGE_DIMENSION) {
-            img = ImageUtils.scaleImage(img, MAX_IMAGE_DIMENSION);
         }
-        final BufferedImage finalImg = img;
-
-
-        final Map<FeatureEnum, LireFeature> featureExtractMap = new ConcurrentHashMap<>();
-
-        // have multiple features, use ThreadPool to process each feature
-        if (useThreadPool && features.size() > 1) {
-            final CountDownLatch latch = new CountDownLatch(features.size());
-            Executor executor = threadPool.generic();
 
-            for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
-                final FeatureEnum featureEnum = cursor.key;
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
-                            ((Extractor) lireFeature).extract(finalImg);
-                            featureExtractMap.put(featureEnum, lireFeature);
-                        } catch (Throwable e) {
-                            logger.error("Failed to extract feature from image", e);
-                        } finally {
-                            latch.countDown();
-                        }
-                    }
-                });
+        // decoding and extraction run on the image extract pool while this thread waits, the document is admitted
+        // or rejected before any of that work starts
+        BufferedImage sharedImage = null;
+        if (!complete) {
+            final SecurityManager sm = System.getSecurityManager();
+            if (sm != null) {
+                sm.checkPermission(new SpecialPermission());
             }
+            Extraction extraction = new Extraction(content, extractedEnums, featureExtractMap, useThreadPool);
             try {
-                latch.await();
-            } catch (InterruptedException e) {
-                logger.debug("Interrupted extract feature from image", e);
-                Thread.currentThread().interrupt();
+                threadPool.executor(THREAD_POOL).execute(extraction);
+            } catch (EsRejectedExecutionException e) {
+                throw new ImageExtractionRejectedException("Image of [" + name() + "] rejected, [" + THREAD_POOL + "] pool saturated", e);
             }
+            sharedImage = extraction.await();
         }
 
-
+        ImageFieldType imageFieldType = (ImageFieldType) fieldType();
         for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
             FeatureEnum featureEnum = cursor.key;
             Map<String, Object> featureMap = cursor.value;
@@ -389,9 +583,11 @@ public class ImageMapper extends FieldMapper {
                 LireFeature lireFeature;
                 if (featureExtractMap.containsKey(featureEnum)) {   // already processed
                     lireFeature = featureExtractMap.get(featureEnum);
+                } else if (FeatureExtractor.derived(featureEnum, featureEnums)) {
+                    lireFeature = FeatureExtractor.derive(featureEnum, featureExtractMap, sharedImage);
                 } else {
-                    lireFeature = featureEnum.getFeatureClass().newInstance();
-                    ((Extractor) lireFeature).extract(img);
+                    lireFeature = FeatureExtractor.extract(featureEnum, sharedImage);
+                    featureExtractMap.put(featureEnum, lireFeature);
                 }
                 byte[] parsedContent = lireFeature.getByteArrayRepresentation();
 
@@ -400,21 +596,42 @@ public class ImageMapper extends FieldMapper {
                 context.doc().add(new BinaryDocValuesField(name() + "." + featureEnum.name(), new BytesRef(parsedContent)));
 
                 // add hash if required
+                int[] bitSamplingHashes = null;
                 if (featureMap.containsKey(HASH)) {
                     List<String> hashes = (List<String>) featureMap.get(HASH);
                     for (String h : hashes) {
                         HashEnum hashEnum = HashEnum.valueOf(h);
-                        int[] hashVals = null;
+                        if (!hashEnum.trained(hashParams(featureMap, hashEnum))) {  // nothing to index until trained
+                            continue;
+                        }
+                        HashFunctions hashFunctions = imageFieldType.hashFunctions(featureEnum, hashEnum);
+                        int[] hashVals = hashFunctions.hashes(lireFeature.getFeatureVector());
                         if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-                            hashVals = BitSampling.generateHashes(lireFeature.getFeatureVector());
-                        } else if (hashEnum.equals(HashEnum.LSH)) {
-                            hashVals = LocalitySensitiveHashing.generateHashes(lireFeature.getFeatureVector());
+                            bitSamplingHashes = hashVals;
                         }
 
-                        String mapperName = featureEnum.name() + "." + HASH + "." + h;
+                        String mapperName = hashFieldName(featureEnum.name(), hashEnum, featureMap);
+                        if (hashEnum.equals(HashEnum.IVF)) {  // add the code of the residual to the list
+                            byte[] pqCode = ((IvfPqFunctions) hashFunctions).encode(lireFeature.getFeatureVector(), hashVals[0]);
+                            context.doc().add(new BinaryDocValuesField(name() + "." + mapperName + "." + PQ_CODE, new BytesRef(pqCode)));
+                        }
                         FieldMapper hashMapper = hashMappers.get(mapperName);
-                        hashMapper.parse(context = context.createExternalValueContext(SerializationUtils.arrayToString(hashVals)));
+                        if (hashMapper instanceof ImageHashMapper) {
+                            hashMapper.parse(context = context.createExternalValueContext(hashVals));
+                        } else {
+                            hashMapper.parse(context = context.createExternalValueContext(SerializationUtils.arrayToString(hashVals)));
+                        }
+                    }
+                }
+
+                // add bit code if required
+                if (featureMap.containsKey(BIT_CODE)) {
+                    BitSamplingHashFunctions bitSampling = (BitSamplingHashFunctions) imageFieldType.hashFunctions(featureEnum, HashEnum.BIT_SAMPLING);
+                    if (bitSamplingHashes == null) {
+                        bitSamplingHashes = bitSampling.hashes(lireFeature.getFeatureVector());
                     }
+                    long[] bitCode = BitCode.encode(bitSamplingHashes, bitSampling.bits(), bitCodeLength(featureMap));
+                    context.doc().add(new BinaryDocValuesField(name() + "." + featureEnum.name() + "." + BIT_CODE, new BytesRef(BitCode.toBytes(bitCode))));
                 }
             } catch (Exception e) {
                 throw new ElasticsearchImageProcessException("Failed to index feature " + featureEnum.name(), e);
@@ -422,7 +639,7 @@ public class ImageMapper extends FieldMapper {
         }
 
         // process metadata if required
-        if (!metadataMappers.isEmpty()) {
+        if (!metadataMappers.isEmpty() && content != null) {
             try (InputStream is = new ByteBufferStreamInput(ByteBuffer.wrap(content))) {
                 Metadata metadata = ImageMetadataReader.readMetadata(is);
                 for (Directory directory : metadata.getDirectories()) {
@@ -446,6 +663,115 @@ public class ImageMapper extends FieldMapper {
         return null;
     }
 
+    /**
+     * Parse the byte representation of features given with or instead of the image, as base64 or an array of
+     * bytes, features not mapped are ignored
+     */
+    private void parseFeatures(XContentParser parser, Map<FeatureEnum, LireFeature> givenFeatures) throws IOException {
+        String featureName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                featureName = parser.currentName();
+            } else {
+                FeatureEnum featureEnum;
+                try {
+                    featureEnum = FeatureEnum.getByName(featureName);
+                } catch (IllegalArgumentException e) {
+                    throw new MapperParsingException("Unknown feature [" + featureName + "]", e);
+                }
+                if (!features.containsKey(featureEnum)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                byte[] bytes;
+                int length;
+                if (token == XContentParser.Token.START_ARRAY) {
+                    bytes = new byte[64];
+                    length = 0;
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        int value = parser.intValue();
+                        if (value < Byte.MIN_VALUE || value > 255) {
+                            throw new MapperParsingException("Feature [" + featureName + "] has value [" + value + "] out of byte range");
+                        }
+                        bytes = ArrayUtil.grow(bytes, length + 1);
+                        bytes[length++] = (byte) value;
+                    }
+                } else {
+                    bytes = parser.binaryValue();
+                    length = bytes.length;
+                }
+                LireFeature lireFeature;
+                try {
+                    lireFeature = ImageFeatures.read(featureEnum, bytes, 0, length);
+                } catch (ElasticsearchImageProcessException e) {
+                    throw new MapperParsingException("Malformed feature [" + featureName + "]", e);
+                }
+                if (!FeatureExtractor.valid(featureEnum, lireFeature, bytes, 0, length)) {
+                    throw new MapperParsingException("Malformed feature [" + featureName + "]");
+                }
+                givenFeatures.put(featureEnum, lireFeature);
+            }
+        }
+    }
+
+    /**
+     * Hash encoding set in the given feature map, {@link HashEncodingEnum#STRING} by default
+     */
+    static HashEncodingEnum hashEncoding(Map<String, Object> featureMap) {
+        Object hashEncoding = featureMap.get(HASH_ENCODING);
+        return hashEncoding == null ? HashEncodingEnum.STRING : HashEncodingEnum.getByName(hashEncoding.toString());
+    }
+
+    /**
+     * Parsed parameters of the given hash in the given feature map, null if not set
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> hashParams(Map<String, Object> featureMap, HashEnum hashEnum) {
+        Map<String, Object> hashParams = (Map<String, Object>) featureMap.get(HASH_PARAMS);
+        return hashParams == null ? null : (Map<String, Object>) hashParams.get(hashEnum.name());
+    }
+
+    /**
+     * Name of the hash field relative to the image field, hashes of trained parameters go to a field per version
+     */
+    static String hashFieldName(String featureName, HashEnum hashEnum, Map<String, Object> featureMap) {
+        int version = HashEnum.version(hashParams(featureMap, hashEnum));
+        return featureName + "." + HASH + "." + hashEnum.name() + (version > 0 ? "_v" + version : "");
+    }
+
+    /**
+     * Bit code length set in the given feature map, 0 if not set
+     */
+    static int bitCodeLength(Map<String, Object> featureMap) {
+        Object bitCodeLength = featureMap.get(BIT_CODE);
+        return bitCodeLength == null ? 0 : XContentMapValues.nodeIntegerValue(bitCodeLength);
+    }
+
+    /**
+     * Validate the graph parameters of a feature and fill in defaults
+     */
+    static Map<String, Object> parseGraphParams(Map<String, Object> graphMap) {
+        Map<String, Object> parsed = new HashMap<>();
+        parsed.put(GRAPH_M, graphParam(graphMap, GRAPH_M, 16, 2, 100));
+        parsed.put(GRAPH_EF_CONSTRUCTION, graphParam(graphMap, GRAPH_EF_CONSTRUCTION, 100, 1, 10000));
+        for (String name : graphMap.keySet()) {
+            if (!parsed.containsKey(name)) {
+                throw new ElasticsearchGenerationException("Unknown graph parameter [" + name + "]");
+            }
+        }
+        return parsed;
+    }
+
+    private static int graphParam(Map<String, Object> graphMap, String name, int defaultValue, int min, int max) {
+        Object value = graphMap.get(name);
+        int intValue = value == null ? defaultValue : XContentMapValues.nodeIntegerValue(value);
+        if (intValue < min || intValue > max) {
+            throw new ElasticsearchGenerationException("Graph parameter [" + name + "] must be between " + min + " and " + max);
+        }
+        return intValue;
+    }
+
     @Override
     protected void parseCreateField(ParseContext parseContext, List<Field> fields) throws IOException {
 
@@ -459,7 +785,20 @@ public class ImageMapper extends FieldMapper {
 
     @Override
     protected void doMerge(Mapper mergeWith, boolean updateAllTypes) {
-        // ignore this for now
+        if (mergeWith instanceof ImageMapper) {
+            List<String> conflicts = new ArrayList<>();
+            fieldType().checkCompatibility(((ImageMapper) mergeWith).fieldType(), conflicts, false);
+            if (!conflicts.isEmpty()) {
+                throw new IllegalArgumentException("Mapper for [" + fieldType().names().fullName() + "] conflicts with existing mapping:\n" + conflicts);
+            }
+        }
+        super.doMerge(mergeWith, updateAllTypes);
+        // take features of the new mapping, features may have been added and hash parameters trained
+        ImageMapper imageMergeWith = (ImageMapper) mergeWith;
+        this.features = imageMergeWith.features;
+        this.featureMappers = imageMergeWith.featureMappers;
+        this.hashMappers = imageMergeWith.hashMappers;
+        this.metadataMappers = imageMergeWith.metadataMappers;
     }
 
     @Override
@@ -488,4 +827,127 @@ public class ImageMapper extends FieldMapper {
     protected String contentType() {
         return CONTENT_TYPE;
     }
+
+    /**
+     * Decoding of an image and extraction of its features, run as a task of the image extract pool. The task
+     * decodes the image and extracts the features one after the other, or in parallel forks a task per feature but
+     * the first, extracting a forked feature itself when the pool can't take it.
+     */
+    private final class Extraction implements Runnable {
+        private final byte[] content;
+        private final Set<FeatureEnum> extractedEnums;
+        private final Map<FeatureEnum, LireFeature> features;
+        private final boolean parallel;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile BufferedImage sharedImage;
+        private volatile Throwable failure;
+
+        Extraction(byte[] content, Set<FeatureEnum> extractedEnums, Map<FeatureEnum, LireFeature> features, boolean parallel) {
+            this.content = content;
+            this.extractedEnums = extractedEnums;
+            this.features = features;
+            this.parallel = parallel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedImage img = AccessController.doPrivileged(new PrivilegedAction<BufferedImage>() {
+                    @Override
+                    public BufferedImage run() {
+                        try {
+                            return decoder.decode(content, MAX_IMAGE_DIMENSION);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+                if (img == null) {
+                    throw new ElasticsearchImageProcessException("Failed to decode image, unsupported format");
+                }
+                sharedImage = FeatureExtractor.sharedImage(img);
+                if (parallel && extractedEnums.size() > 1) {
+                    extractParallel();
+                } else {
+                    for (FeatureEnum featureEnum : extractedEnums) {
+                        features.put(featureEnum, FeatureExtractor.extract(featureEnum, sharedImage));
+                    }
+                }
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Extract the first feature here and fork the others, forked features not started by another thread yet
+         * are extracted here too, so this pool thread never waits on tasks queued behind it
+         */
+        private void extractParallel() throws Exception {
+            Iterator<FeatureEnum> iterator = extractedEnums.iterator();
+            FeatureEnum first = iterator.next();
+            final CountDownLatch forked = new CountDownLatch(extractedEnums.size() - 1);
+            List<ForkedExtraction> tasks = new ArrayList<>();
+            Executor executor = threadPool.executor(THREAD_POOL);
+            while (iterator.hasNext()) {
+                ForkedExtraction task = new ForkedExtraction(iterator.next(), forked);
+                tasks.add(task);
+                try {
+                    executor.execute(task);
+                } catch (EsRejectedExecutionException e) {  // the document is admitted, extract it on this pool thread
+                    task.run();
+                }
+            }
+            features.put(first, FeatureExtractor.extract(first, sharedImage));
+            for (ForkedExtraction task : tasks) {
+                task.run();
+            }
+            forked.await();
+        }
+
+        /**
+         * Extraction of one feature, run once by whichever thread claims it first
+         */
+        private final class ForkedExtraction implements Runnable {
+            private final FeatureEnum featureEnum;
+            private final CountDownLatch forked;
+            private final AtomicBoolean claimed = new AtomicBoolean();
+
+            ForkedExtraction(FeatureEnum featureEnum, CountDownLatch forked) {
+                this.featureEnum = featureEnum;
+                this.forked = forked;
+            }
+
+            @Override
+            public void run() {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    features.put(featureEnum, FeatureExtractor.extract(featureEnum, sharedImage));
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    forked.countDown();
+                }
+            }
+        }
+
+        /**
+         * Wait for the extraction, the shared image once done
+         */
+        BufferedImage await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElasticsearchImageProcessException("Interrupted extract feature from image", e);
+            }
+            if (failure != null) {
+                throw new ElasticsearchImageProcessException("Failed to extract feature from image", failure);
+            }
+            return sharedImage;
+        }
+    }
 }
@@ -0,0 +1,282 @@
+package org.elasticsearch.index.mapper.image;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Functions of {@link HashEnum#IVF}, an inverted file with product quantized residuals.
+ * <p>
+ * The hash of a feature vector is the list of its nearest coarse centroid. The residual of the vector to that
+ * centroid is split into subvectors, each subvector is quantized to the nearest of up to 256 codewords, giving a
+ * code of one byte per subvector. A query compares its own residual to the codewords once per probed list, after
+ * that the approximate squared L2 distance of a doc is the sum of one table lookup per code byte.
+ * <p>
+ * Centroids and codebooks are trained by k-means on a sample of the indexed vectors, see {@link #train}.
+ */
+public final class IvfPqFunctions implements HashFunctions {
+
+    public static final int MAX_CODEWORDS = 256;
+
+    public static final int MAX_LISTS = 1024;
+
+    public static final int MAX_SUBVECTORS = 64;
+
+    /**
+     * Max number of centroid and codeword values, the trained model is stored in the mapping, which is part of the
+     * cluster state sent to every node
+     */
+    public static final int MAX_MODEL_VALUES = 1 << 18;
+
+    private static final int ITERATIONS = 20;
+
+    private final double[][] centroids;  // [list][dimension]
+    private final double[][][] codebooks;  // [subvector][codeword][subvector dimension]
+    private final int dimensions;
+
+    IvfPqFunctions(double[][] centroids, double[][][] codebooks) {
+        this.centroids = centroids;
+        this.codebooks = codebooks;
+        this.dimensions = centroids[0].length;
+    }
+
+    /**
+     * Train the given number of lists and product quantizer subvectors on the given vectors
+     */
+    public static IvfPqFunctions train(List<double[]> vectors, int lists, int subvectors, long seed) {
+        int dimensions = 0;
+        for (double[] vector : vectors) {
+            dimensions = Math.max(dimensions, vector.length);
+        }
+        if (vectors.size() < lists) {
+            throw new IllegalArgumentException("Need at least " + lists + " vectors to train " + lists + " lists, got " + vectors.size());
+        }
+        if (dimensions < subvectors) {
+            throw new IllegalArgumentException("Can not split " + dimensions + " dimensions into " + subvectors + " subvectors");
+        }
+        int codewords = Math.min(MAX_CODEWORDS, vectors.size());
+        if ((long) (lists + codewords) * dimensions > MAX_MODEL_VALUES) {
+            throw new IllegalArgumentException("Can not store " + lists + " lists and " + codewords + " codewords of " + dimensions
+                    + " dimensions in the mapping, at most " + MAX_MODEL_VALUES + " values, use fewer lists");
+        }
+
+        Random random = new Random(seed);
+        double[][] points = new double[vectors.size()][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = Arrays.copyOf(vectors.get(i), dimensions);
+        }
+        double[][] centroids = kMeans(points, lists, random);
+
+        double[][] residuals = new double[points.length][dimensions];
+        for (int i = 0; i < points.length; i++) {
+            double[] centroid = centroids[nearest(centroids, points[i], 0, dimensions)];
+            for (int j = 0; j < dimensions; j++) {
+                residuals[i][j] = points[i][j] - centroid[j];
+            }
+        }
+
+        double[][][] codebooks = new double[subvectors][][];
+        for (int s = 0; s < subvectors; s++) {
+            int start = start(s, subvectors, dimensions), end = start(s + 1, subvectors, dimensions);
+            double[][] subPoints = new double[points.length][];
+            for (int i = 0; i < points.length; i++) {
+                subPoints[i] = Arrays.copyOfRange(residuals[i], start, end);
+            }
+            codebooks[s] = kMeans(subPoints, codewords, random);
+        }
+        return new IvfPqFunctions(centroids, codebooks);
+    }
+
+    public double[][] centroids() {
+        return centroids;
+    }
+
+    public double[][][] codebooks() {
+        return codebooks;
+    }
+
+    public int lists() {
+        return centroids.length;
+    }
+
+    @Override
+    public int numFunctions() {
+        return 1;
+    }
+
+    /**
+     * The list of the vector
+     */
+    @Override
+    public int[] hashes(double[] vector) {
+        return new int[]{nearest(centroids, fit(vector), 0, dimensions)};
+    }
+
+    /**
+     * The given number of lists nearest to the vector, nearest first
+     */
+    public int[] nearestLists(double[] vector, int n) {
+        double[] v = fit(vector);
+        n = Math.min(n, centroids.length);
+        int[] lists = new int[n];
+        double[] distances = new double[n];
+        int size = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            double distance = squaredDistance(centroids[c], v, 0, dimensions);
+            if (size == n && distance >= distances[n - 1]) {
+                continue;
+            }
+            int i = size == n ? n - 1 : size++;
+            while (i > 0 && distances[i - 1] > distance) {
+                lists[i] = lists[i - 1];
+                distances[i] = distances[i - 1];
+                i--;
+            }
+            lists[i] = c;
+            distances[i] = distance;
+        }
+        return lists;
+    }
+
+    /**
+     * Product quantizer code of the residual of the vector to the centroid of the given list
+     */
+    public byte[] encode(double[] vector, int list) {
+        double[] residual = residual(fit(vector), list);
+        byte[] code = new byte[codebooks.length];
+        for (int s = 0; s < codebooks.length; s++) {
+            int start = start(s, codebooks.length, dimensions);
+            code[s] = (byte) nearest(codebooks[s], residual, start, start(s + 1, codebooks.length, dimensions));
+        }
+        return code;
+    }
+
+    /**
+     * Squared L2 distances between the residual of the query to the given list and every codeword,
+     * indexed by subvector and codeword
+     */
+    public float[][] distanceTable(double[] query, int list) {
+        double[] residual = residual(fit(query), list);
+        float[][] table = new float[codebooks.length][];
+        for (int s = 0; s < codebooks.length; s++) {
+            int start = start(s, codebooks.length, dimensions);
+            int end = start(s + 1, codebooks.length, dimensions);
+            table[s] = new float[codebooks[s].length];
+            for (int c = 0; c < codebooks[s].length; c++) {
+                table[s][c] = (float) squaredDistance(codebooks[s][c], residual, start, end);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Approximate squared L2 distance of the code stored in the given doc value, or -1 if the doc has no code
+     */
+    public static float distance(float[][] table, BytesRef code) {
+        if (code.length != table.length) {
+            return -1;
+        }
+        float distance = 0;
+        for (int s = 0; s < table.length; s++) {
+            distance += table[s][code.bytes[code.offset + s] & 0xFF];
+        }
+        return distance;
+    }
+
+    private double[] fit(double[] vector) {
+        return vector.length == dimensions ? vector : Arrays.copyOf(vector, dimensions);
+    }
+
+    private double[] residual(double[] vector, int list) {
+        double[] residual = new double[dimensions];
+        for (int j = 0; j < dimensions; j++) {
+            residual[j] = vector[j] - centroids[list][j];
+        }
+        return residual;
+    }
+
+    private static int start(int subvector, int subvectors, int dimensions) {
+        return subvector * dimensions / subvectors;
+    }
+
+    /**
+     * Squared L2 distance between the point and the dimensions from start to end of the vector
+     */
+    private static double squaredDistance(double[] point, double[] vector, int start, int end) {
+        double distance = 0;
+        for (int j = start; j < end; j++) {
+            double d = vector[j] - point[j - start];
+            distance += d * d;
+        }
+        return distance;
+    }
+
+    private static int nearest(double[][] points, double[] vector, int start, int end) {
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < points.length; i++) {
+            double distance = squaredDistance(points[i], vector, start, end);
+            if (distance < nearestDistance) {
+                nearest = i;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Lloyd's k-means starting from k distinct random points, empty clusters are restarted from a random point
+     */
+    private static double[][] kMeans(double[][] points, int k, Random random) {
+        int dimensions = points[0].length;
+        int[] order = new int[points.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        double[][] centroids = new double[k][];
+        for (int c = 0; c < k; c++) {
+            int pick = c + random.nextInt(order.length - c);
+            int tmp = order[c];
+            order[c] = order[pick];
+            order[pick] = tmp;
+            centroids[c] = points[order[c]].clone();
+        }
+
+        int[] assignments = new int[points.length];
+        Arrays.fill(assignments, -1);
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < points.length; i++) {
+                int nearest = nearest(centroids, points[i], 0, dimensions);
+                if (nearest != assignments[i]) {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            double[][] sums = new double[k][dimensions];
+            int[] counts = new int[k];
+            for (int i = 0; i < points.length; i++) {
+                counts[assignments[i]]++;
+                for (int j = 0; j < dimensions; j++) {
+                    sums[assignments[i]][j] += points[i][j];
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    centroids[c] = points[random.nextInt(points.length)].clone();
+                } else {
+                    for (int j = 0; j < dimensions; j++) {
+                        centroids[c][j] = sums[c][j] / counts[c];
+                    }
+                }
+            }
+        }
+        return centroids;
+    }
+}
@@ -0,0 +1,162 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Hash functions of {@link HashEnum#LSH}, each function maps a feature vector to the bucket
+ * floor((a . v + b) / binLength). Unlike {@link LocalitySensitiveHashing} the position inside the bucket
+ * is available, which allows probing the neighbouring buckets at query time.
+ * <p>
+ * The default functions are read from {@link ImageMapper#LSH_HASH_FILE} on first use. Generated functions are
+ * derived from a seed, coefficients are generated per dimension in order, so they are extended as needed
+ * for longer feature vectors.
+ */
+public final class LshHashFunctions implements HashFunctions {
+
+    private static final class DefaultHolder {
+        private static final LshHashFunctions DEFAULT = readDefault();
+    }
+
+    private final double[] b;
+    private final double binLength;
+    private final Long seed;  // null for functions read from file
+    private volatile double[][] a;
+
+    private LshHashFunctions(double[][] a, double[] b, double binLength) {
+        this.a = a;
+        this.b = b;
+        this.binLength = binLength;
+        this.seed = null;
+    }
+
+    private LshHashFunctions(int numFunctions, double binLength, long seed) {
+        this.a = new double[numFunctions][0];
+        this.b = new double[numFunctions];
+        this.binLength = binLength;
+        this.seed = seed;
+        for (int i = 0; i < numFunctions; i++) {
+            b[i] = random(i).nextDouble() * binLength;
+        }
+    }
+
+    /**
+     * Functions of {@link ImageMapper#LSH_HASH_FILE}, same as the ones used by {@link LocalitySensitiveHashing}
+     */
+    public static LshHashFunctions defaults() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    /**
+     * Functions generated from the given seed, the same parameters always give the same functions
+     */
+    public static LshHashFunctions generate(int numFunctions, double binLength, long seed) {
+        return new LshHashFunctions(numFunctions, binLength, seed);
+    }
+
+    private static LshHashFunctions readDefault() {
+        try (InputStream is = LshHashFunctions.class.getResourceAsStream(ImageMapper.LSH_HASH_FILE);
+             ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(is))) {
+            int dimensions = ois.readInt();
+            int numFunctions = ois.readInt();
+            double[] b = new double[numFunctions];
+            for (int i = 0; i < numFunctions; i++) {
+                b[i] = ois.readFloat();
+            }
+            double[][] a = new double[numFunctions][dimensions];
+            for (int i = 0; i < numFunctions; i++) {
+                for (int j = 0; j < dimensions; j++) {
+                    a[i][j] = ois.readFloat();
+                }
+            }
+            return new LshHashFunctions(a, b, LocalitySensitiveHashing.binLength);
+        } catch (IOException e) {
+            throw new ElasticsearchImageProcessException("Failed to read hash functions " + ImageMapper.LSH_HASH_FILE, e);
+        }
+    }
+
+    @Override
+    public int numFunctions() {
+        return b.length;
+    }
+
+    /**
+     * Bucket of each function, for the default functions same as {@link LocalitySensitiveHashing#generateHashes(double[])}
+     */
+    @Override
+    public int[] hashes(double[] vector) {
+        double[][] a = coefficients(vector.length);
+        int[] hashes = new int[b.length];
+        for (int i = 0; i < b.length; i++) {
+            hashes[i] = (int) Math.floor(position(a[i], i, vector));
+        }
+        return hashes;
+    }
+
+    /**
+     * Bucket of each function followed by the given number of neighbouring buckets per function,
+     * nearest to the position of the vector first
+     */
+    public int[] probes(double[] vector, int probes) {
+        double[][] a = coefficients(vector.length);
+        int[] hashes = new int[b.length * (1 + probes)];
+        int n = 0;
+        for (int i = 0; i < b.length; i++) {
+            double position = position(a[i], i, vector);
+            int bucket = (int) Math.floor(position);
+            double offset = position - bucket;
+            hashes[n++] = bucket;
+
+            // distance to bucket - k is offset + k - 1, distance to bucket + k is k - offset
+            int down = 1, up = 1;
+            for (int p = 0; p < probes; p++) {
+                if (up - offset <= offset + down - 1) {
+                    hashes[n++] = bucket + up++;
+                } else {
+                    hashes[n++] = bucket - down++;
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private double position(double[] ai, int function, double[] vector) {
+        double product = 0;
+        for (int j = 0; j < vector.length; j++) {
+            product += vector[j] * ai[j];
+        }
+        return (product + b[function]) / binLength;
+    }
+
+    private Random random(int function) {
+        return new Random(seed * 0x9E3779B97F4A7C15L + function);
+    }
+
+    private double[][] coefficients(int dimensions) {
+        double[][] a = this.a;
+        if (seed == null || a[0].length >= dimensions) {
+            return a;
+        }
+        synchronized (this) {
+            a = this.a;
+            if (a[0].length < dimensions) {
+                a = new double[b.length][dimensions];
+                for (int i = 0; i < b.length; i++) {
+                    Random random = random(i);
+                    random.nextDouble();  // offset b
+                    for (int j = 0; j < dimensions; j++) {
+                        a[i][j] = random.nextGaussian();
+                    }
+                }
+                this.a = a;
+            }
+            return a;
+        }
+    }
+}
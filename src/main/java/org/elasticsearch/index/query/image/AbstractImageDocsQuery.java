@@ -0,0 +1,157 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Calculate score only for the docs of each segment selected by a subclass, like the docs sharing hashes with the
+ * query or the top candidates of a cheap distance. Selected docs farther than the max distance are dropped while
+ * scoring.
+ */
+public abstract class AbstractImageDocsQuery extends Query {
+
+    protected final String luceneFieldName;
+    protected final LireFeature lireFeature;
+    protected final FeatureDistance featureDistance;
+    protected final float boost;
+    protected final double maxDistance;
+
+    protected AbstractImageDocsQuery(String luceneFieldName, LireFeature lireFeature, float boost, double maxDistance) {
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.featureDistance = FeatureDistance.of(lireFeature);
+        this.boost = boost;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Whether selected docs are never farther than the max distance, so scorers don't check it again
+     */
+    protected boolean docsWithinMaxDistance() {
+        return false;
+    }
+
+    /**
+     * Terms of the query, none by default
+     */
+    protected void extractTerms(Set<Term> terms) {
+    }
+
+    final class ImageDocsScorer extends AbstractImageScorer {
+        private final DocIdSetIterator disi;
+        private final TwoPhaseIterator twoPhase;
+
+        ImageDocsScorer(Weight weight, DocIdSetIterator disi, LeafReaderContext context, double maxDistance) {
+            super(weight, luceneFieldName, featureDistance, context.reader(), boost, maxDistance);
+            this.disi = disi;
+            this.twoPhase = maxDistanceIterator(disi);
+        }
+
+        @Override
+        public int docID() {
+            return disi.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return twoPhase == null ? disi : TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhase;
+        }
+    }
+
+    abstract class ImageDocsWeight extends Weight {
+
+        protected ImageDocsWeight() {
+            super(AbstractImageDocsQuery.this);
+        }
+
+        /**
+         * Selected docs of a segment, null if none
+         */
+        protected abstract DocIdSetIterator docs(LeafReaderContext context) throws IOException;
+
+        @Override
+        public String toString() {
+            return "weight(" + AbstractImageDocsQuery.this + ")";
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            DocIdSetIterator docs = docs(context);
+            if (docs == null) {
+                return null;
+            }
+            return new ImageDocsScorer(this, docs, context, docsWithinMaxDistance() ? AbstractImageScorer.NO_MAX_DISTANCE : maxDistance);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            Scorer scorer = scorer(context);
+            if (scorer != null) {
+                int newDoc = scorer.iterator().advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    List<Explanation> details = new ArrayList<>();
+                    if (boost != 1.0f) {
+                        details.add(Explanation.match(boost, "boost"));
+                        score = score / boost;
+                    }
+                    details.add(Explanation.match(score, "image score (1/distance)"));
+                    return Explanation.match(score, AbstractImageDocsQuery.this.toString() + ", product of:", details);
+                }
+            }
+            return Explanation.noMatch(AbstractImageDocsQuery.this.toString() + " doesn't match id " + doc);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            AbstractImageDocsQuery.this.extractTerms(terms);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || o.getClass() != getClass())
+            return false;
+
+        AbstractImageDocsQuery that = (AbstractImageDocsQuery) o;
+
+        if (boost != that.boost) return false;
+        if (Double.compare(maxDistance, that.maxDistance) != 0) return false;
+        if (!lireFeature.equals(that.lireFeature)) return false;
+        if (!luceneFieldName.equals(that.luceneFieldName)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        long temp = Double.doubleToLongBits(maxDistance);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        result = Float.floatToIntBits(boost) ^ result;
+        return result;
+    }
+}
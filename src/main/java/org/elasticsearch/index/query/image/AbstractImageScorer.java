@@ -1,10 +1,11 @@
 package org.elasticsearch.index.query.image;
 
-import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
 import org.apache.lucene.index.BinaryDocValues;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchImageProcessException;
@@ -16,48 +17,100 @@ import static org.apache.lucene.search.DocIdSetIterator.NO_MORE_DOCS;
 /**
  * Calculate score for each image
  * score = (1 / distance) * boost
+ *
+ * A scorer is created per leaf, distances are computed on the doc value bytes by a {@link FeatureDistance}
+ * owned by this leaf, so no feature is instantiated per doc.
+ *
+ * With a max distance, {@link #maxDistanceIterator(DocIdSetIterator)} only matches docs not farther than the max
+ * distance. The distance computation of a doc stops as soon as it exceeds the max, a matching doc is scored with
+ * the distance computed while matching.
  */
 public abstract class AbstractImageScorer extends Scorer {
+
+    /**
+     * Max distance of queries matching images at any distance
+     */
+    public static final double NO_MAX_DISTANCE = Double.POSITIVE_INFINITY;
+
     private final String luceneFieldName;
-    private final LireFeature lireFeature;
+    private final FeatureDistance featureDistance;
     private final IndexReader reader;
     private final float boost;
+    private final double maxDistance;
     private BinaryDocValues binaryDocValues;
+    private int distanceDoc = -1;
+    private double distance;
 
-    protected AbstractImageScorer(Weight weight, String luceneFieldName, LireFeature lireFeature, IndexReader reader,
+    protected AbstractImageScorer(Weight weight, String luceneFieldName, FeatureDistance featureDistance, IndexReader reader,
                                   float boost) {
+        this(weight, luceneFieldName, featureDistance, reader, boost, NO_MAX_DISTANCE);
+    }
+
+    protected AbstractImageScorer(Weight weight, String luceneFieldName, FeatureDistance featureDistance, IndexReader reader,
+                                  float boost, double maxDistance) {
         super(weight);
         this.luceneFieldName = luceneFieldName;
-        this.lireFeature = lireFeature;
+        this.featureDistance = featureDistance.forLeaf();
         this.reader = reader;
         this.boost = boost;
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Two phase iterator over the given docs matching docs within the max distance, null if there is no max distance
+     */
+    protected TwoPhaseIterator maxDistanceIterator(DocIdSetIterator approximation) {
+        if (maxDistance == NO_MAX_DISTANCE) {
+            return null;
+        }
+        return new TwoPhaseIterator(approximation) {
+            @Override
+            public boolean matches() throws IOException {
+                return distance(approximation.docID(), maxDistance) <= maxDistance;
+            }
+
+            @Override
+            public float matchCost() {
+                return 100;  // roughly the number of feature bins compared
+            }
+        };
+    }
+
+    private double distance(int doc, double bound) throws IOException {
+        if (doc != distanceDoc) {
+            if (binaryDocValues == null) {
+                LeafReader atomicReader = (LeafReader) reader;
+                binaryDocValues = atomicReader.getBinaryDocValues(luceneFieldName);
+            }
+            try {
+                BytesRef bytesRef = binaryDocValues.get(doc);
+                distance = featureDistance.distance(bytesRef, bound);
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+            }
+            distanceDoc = doc;
+        }
+        return distance;
     }
 
     @Override
     public float score() throws IOException {
         assert docID() != NO_MORE_DOCS;
 
-        if (binaryDocValues == null) {
-            LeafReader atomicReader = (LeafReader) reader;
-            binaryDocValues = atomicReader.getBinaryDocValues(luceneFieldName);
-        }
-
-        try {
-            BytesRef bytesRef = binaryDocValues.get(docID());
-            LireFeature docFeature = lireFeature.getClass().newInstance();
-            docFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return score(distance(docID(), NO_MAX_DISTANCE)) * boost;
+    }
 
-            double distance = lireFeature.getDistance(docFeature);
-            double score;
-            if (Double.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
-                score = 2f - distance;
-            } else {
-                score = 1 / distance;
-            }
-            return (float) score * boost;
-        } catch (Exception e) {
-            throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+    /**
+     * Image score of the given distance, without boost
+     */
+    static float score(double distance) {
+        double score;
+        if (Double.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
+            score = 2f - distance;
+        } else {
+            score = 1 / distance;
         }
+        return (float) score;
     }
 
     @Override
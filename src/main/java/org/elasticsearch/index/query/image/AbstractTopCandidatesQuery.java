@@ -0,0 +1,97 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.common.lucene.search.Queries;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Select the top n docs by a cheap or approximate distance, and only calculate score for those docs.
+ * Subclasses select the {@link TopCandidates} of a segment, segments are processed in parallel by the
+ * {@link LeafTaskRunner} and their candidates are merged into the global top n.
+ */
+public abstract class AbstractTopCandidatesQuery extends AbstractImageDocsQuery {
+
+    protected final int maxResult;
+    protected final LeafTaskRunner taskRunner;
+
+    protected AbstractTopCandidatesQuery(String luceneFieldName, int maxResult, LireFeature lireFeature, float boost, double maxDistance,
+                                         LeafTaskRunner taskRunner) {
+        super(luceneFieldName, lireFeature, boost, maxDistance);
+        this.maxResult = maxResult;
+        this.taskRunner = taskRunner;
+    }
+
+    /**
+     * Top n live docs of a segment, the score of a candidate is its negated cheap distance, or null if the segment
+     * has no candidate
+     */
+    protected abstract TopCandidates.CandidateQueue candidates(LeafReaderContext leaf) throws IOException;
+
+    /**
+     * Tasks selecting the candidates of the reader, one per segment
+     */
+    protected List<Callable<TopCandidates.CandidateQueue>> candidateTasks(IndexSearcher searcher) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        List<Callable<TopCandidates.CandidateQueue>> tasks = new ArrayList<>(leaves.size());
+        for (final LeafReaderContext leaf : leaves) {
+            tasks.add(new Callable<TopCandidates.CandidateQueue>() {
+                @Override
+                public TopCandidates.CandidateQueue call() throws IOException {
+                    return candidates(leaf);
+                }
+            });
+        }
+        return tasks;
+    }
+
+    final class TopCandidatesWeight extends ImageDocsWeight {
+        private final int[][] leafDocs;
+
+        public TopCandidatesWeight(int[][] leafDocs) {
+            this.leafDocs = leafDocs;
+        }
+
+        @Override
+        protected DocIdSetIterator docs(LeafReaderContext context) {
+            int[] docs = leafDocs[context.ord];
+            return docs == null ? null : new TopCandidates.SortedDocsIterator(docs);
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        int[][] leafDocs = TopCandidates.merge(taskRunner.run(candidateTasks(searcher)), maxResult, searcher.getIndexReader().leaves());
+        if (leafDocs == null) {  // no result find
+            return Queries.newMatchNoDocsQuery().createWeight(searcher, needsScores);
+        }
+
+        return new TopCandidatesWeight(leafDocs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o))
+            return false;
+
+        AbstractTopCandidatesQuery that = (AbstractTopCandidatesQuery) o;
+
+        if (maxResult != that.maxResult) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + maxResult;
+        return result;
+    }
+}
@@ -0,0 +1,372 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.FCTH;
+import net.semanticmetadata.lire.imageanalysis.features.global.JCD;
+import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
+import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.ColorLayoutImpl;
+import net.semanticmetadata.lire.imageanalysis.features.global.mpeg7.EdgeHistogramImplementation;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.util.Arrays;
+
+/**
+ * Distance between the query feature and the feature bytes stored in doc values.
+ * <p>
+ * The query feature is decoded once when the distance is created. For CEDD, FCTH, JCD, PHOG, COLOR_LAYOUT
+ * and EDGE_HISTOGRAM the doc bytes are compared in place and give exactly the same result as
+ * {@link LireFeature#getDistance(LireFeature)}, other features are decoded into a feature reused per leaf.
+ * <p>
+ * Instances may keep scratch buffers, use {@link #forLeaf()} to get an instance for each leaf scorer.
+ */
+public abstract class FeatureDistance {
+
+    public static FeatureDistance of(LireFeature queryFeature) {
+        Class<? extends LireFeature> featureClass = queryFeature.getClass();
+        if (featureClass == CEDD.class) {
+            return new NibbleTanimotoDistance(queryFeature.getFeatureVector(), 1d);
+        } else if (featureClass == FCTH.class) {
+            return new NibbleTanimotoDistance(queryFeature.getFeatureVector(), 2d);
+        } else if (featureClass == JCD.class) {
+            return new JcdDistance(queryFeature.getFeatureVector());
+        } else if (featureClass == PHOG.class) {
+            return new NibbleL1Distance(queryFeature.getFeatureVector());
+        } else if (featureClass == ColorLayout.class) {
+            return new ColorLayoutDistance(queryFeature.getByteArrayRepresentation());
+        } else if (featureClass == EdgeHistogram.class) {
+            return new EdgeHistogramDistance(queryFeature.getByteArrayRepresentation());
+        }
+        return new LireFeatureDistance(queryFeature, newFeature(featureClass));
+    }
+
+    private static LireFeature newFeature(Class<? extends LireFeature> featureClass) {
+        try {
+            return featureClass.newInstance();
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to create feature " + featureClass.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * Distance to the feature stored in the given doc value
+     */
+    public abstract double distance(BytesRef bytesRef);
+
+    /**
+     * Distance to the feature stored in the given doc value, the computation may stop as soon as the distance
+     * exceeds the given bound, in which case a value higher than the bound but lower than the distance is returned
+     */
+    public double distance(BytesRef bytesRef, double bound) {
+        return distance(bytesRef);
+    }
+
+    /**
+     * Returns an instance for a single leaf scorer, the decoded query is shared but scratch buffers are not
+     */
+    public abstract FeatureDistance forLeaf();
+
+    /**
+     * Tanimoto distance of CEDD and FCTH, each byte holds two 4 bit bins, trailing empty bins are not stored
+     */
+    static final class NibbleTanimotoDistance extends FeatureDistance {
+        private final double[] query;
+        private final double queryNorm;
+        private final double binDivisor;
+
+        NibbleTanimotoDistance(double[] query, double binDivisor) {
+            this.query = query;
+            this.binDivisor = binDivisor;
+            double sum = 0;
+            for (double q : query) {
+                sum += q;
+            }
+            this.queryNorm = sum;
+        }
+
+        @Override
+        public double distance(BytesRef bytesRef) {
+            final byte[] bytes = bytesRef.bytes;
+            final int end = bytesRef.offset + Math.min(bytesRef.length, query.length >> 1);
+
+            double docNorm = 0;
+            for (int i = bytesRef.offset; i < end; i++) {
+                int tmp = bytes[i] + 128;
+                docNorm += (tmp >> 4) / binDivisor;
+                docNorm += (tmp & 15) / binDivisor;
+            }
+            if (docNorm == 0 && queryNorm == 0) {
+                return 0;
+            }
+            if (docNorm == 0 || queryNorm == 0) {
+                return 100;
+            }
+
+            double product = 0, querySquares = 0, docSquares = 0;
+            int bin = 0;
+            for (int i = bytesRef.offset; i < end; i++) {
+                int tmp = bytes[i] + 128;
+                double d = ((tmp >> 4) / binDivisor) / docNorm;
+                double q = query[bin++] / queryNorm;
+                product += d * q;
+                querySquares += q * q;
+                docSquares += d * d;
+
+                d = ((tmp & 15) / binDivisor) / docNorm;
+                q = query[bin++] / queryNorm;
+                product += d * q;
+                querySquares += q * q;
+                docSquares += d * d;
+            }
+            for (; bin < query.length; bin++) {
+                double q = query[bin] / queryNorm;
+                querySquares += q * q;
+            }
+            return 100 - 100 * (product / (querySquares + docSquares - product));
+        }
+
+        @Override
+        public FeatureDistance forLeaf() {
+            return this;
+        }
+    }
+
+    /**
+     * Tanimoto distance of JCD, positive bytes are bins, other bytes are runs of empty bins
+     */
+    static final class JcdDistance extends FeatureDistance {
+        private final double[] query;
+        private final double queryNorm;
+        private final double querySquares;
+
+        JcdDistance(double[] query) {
+            this.query = query;
+            double sum = 0;
+            for (double q : query) {
+                sum += q;
+            }
+            this.queryNorm = sum;
+            double squares = 0;
+            for (double q : query) {
+                squares += (q / sum) * (q / sum);
+            }
+            this.querySquares = squares;
+        }
+
+        @Override
+        public double distance(BytesRef bytesRef) {
+            final byte[] bytes = bytesRef.bytes;
+            final int end = bytesRef.offset + bytesRef.length;
+
+            double docNorm = 0;
+            for (int i = bytesRef.offset; i < end; i++) {
+                if (bytes[i] > 0) {
+                    docNorm += bytes[i] / 2d;
+                }
+            }
+            if (docNorm == 0 && queryNorm == 0) {
+                return 0;
+            }
+            if (docNorm == 0 || queryNorm == 0) {
+                return 100;
+            }
+
+            double product = 0, docSquares = 0;
+            int bin = 0;
+            for (int i = bytesRef.offset; i < end && bin < query.length; i++) {
+                if (bytes[i] > 0) {
+                    double d = (bytes[i] / 2d) / docNorm;
+                    product += d * (query[bin] / queryNorm);
+                    docSquares += d * d;
+                    bin++;
+                } else {
+                    bin += -bytes[i];
+                }
+            }
+            return 100 - 100 * (product / (querySquares + docSquares - product));
+        }
+
+        @Override
+        public FeatureDistance forLeaf() {
+            return this;
+        }
+    }
+
+    /**
+     * L1 distance of PHOG, each byte holds two 4 bit bins
+     */
+    static final class NibbleL1Distance extends FeatureDistance {
+        private final int[] query;
+
+        NibbleL1Distance(double[] query) {
+            this.query = new int[query.length];
+            for (int i = 0; i < query.length; i++) {
+                this.query[i] = (int) query[i];
+            }
+        }
+
+        @Override
+        public double distance(BytesRef bytesRef) {
+            return distance(bytesRef, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Bins only add to the distance, so the sum is abandoned once it exceeds the bound
+         */
+        @Override
+        public double distance(BytesRef bytesRef, double bound) {
+            final byte[] bytes = bytesRef.bytes;
+            final int end = bytesRef.offset + Math.min(bytesRef.length, query.length >> 1);
+
+            double distance = 0;
+            int bin = 0;
+            for (int i = bytesRef.offset; i < end; i++) {
+                int tmp = bytes[i] + 128;
+                distance += Math.abs(query[bin++] - (tmp >> 4));
+                distance += Math.abs(query[bin++] - (tmp & 15));
+                if (distance > bound) {
+                    return distance;
+                }
+            }
+            for (; bin < query.length; bin++) {
+                distance += Math.abs(query[bin]);
+            }
+            return distance;
+        }
+
+        @Override
+        public FeatureDistance forLeaf() {
+            return this;
+        }
+    }
+
+    /**
+     * Weighted distance of COLOR_LAYOUT, doc coefficients are decoded into buffers reused per leaf
+     */
+    static final class ColorLayoutDistance extends FeatureDistance {
+        private static final int NUM_Y_COEFF = 21;
+        private static final int NUM_C_COEFF = 6;
+
+        private final int[] queryY, queryCb, queryCr;
+        private final int[] docY = new int[NUM_Y_COEFF];
+        private final int[] docCb = new int[NUM_C_COEFF];
+        private final int[] docCr = new int[NUM_C_COEFF];
+
+        ColorLayoutDistance(byte[] query) {
+            int numY = query[0], numC = query[1];
+            this.queryY = new int[numY];
+            this.queryCb = new int[numC];
+            this.queryCr = new int[numC];
+            decode(query, 0, queryY, queryCb, queryCr);
+        }
+
+        private ColorLayoutDistance(ColorLayoutDistance other) {
+            this.queryY = other.queryY;
+            this.queryCb = other.queryCb;
+            this.queryCr = other.queryCr;
+        }
+
+        private static void decode(byte[] bytes, int offset, int[] y, int[] cb, int[] cr) {
+            int numY = bytes[offset], numC = bytes[offset + 1];
+            for (int i = 0; i < Math.min(numY, y.length); i++) {
+                y[i] = bytes[offset + 2 + i];
+            }
+            for (int i = 0; i < Math.min(numC, cb.length); i++) {
+                cb[i] = bytes[offset + 2 + numY + i];
+                cr[i] = bytes[offset + 2 + numY + numC + i];
+            }
+        }
+
+        @Override
+        public double distance(BytesRef bytesRef) {
+            Arrays.fill(docY, 0);
+            Arrays.fill(docCb, 0);
+            Arrays.fill(docCr, 0);
+            decode(bytesRef.bytes, bytesRef.offset, docY, docCb, docCr);
+            return ColorLayoutImpl.getSimilarity(queryY, queryCb, queryCr, docY, docCb, docCr);
+        }
+
+        @Override
+        public FeatureDistance forLeaf() {
+            return new ColorLayoutDistance(this);
+        }
+    }
+
+    /**
+     * Distance of EDGE_HISTOGRAM, doc bins are decoded into a buffer reused per leaf
+     */
+    static final class EdgeHistogramDistance extends FeatureDistance {
+        private final int[] query;
+        private final int[] doc;
+
+        EdgeHistogramDistance(byte[] query) {
+            this.query = new int[query.length << 1];
+            this.doc = new int[this.query.length];
+            decode(query, 0, query.length, this.query);
+        }
+
+        private EdgeHistogramDistance(EdgeHistogramDistance other) {
+            this.query = other.query;
+            this.doc = new int[query.length];
+        }
+
+        private static void decode(byte[] bytes, int offset, int length, int[] bins) {
+            int stored = Math.min(length, bins.length >> 1);
+            for (int i = 0; i < stored; i++) {
+                int tmp = bytes[offset + i] + 128;
+                bins[(i << 1) + 1] = tmp & 15;
+                bins[i << 1] = tmp >> 4;
+            }
+            Arrays.fill(bins, stored << 1, bins.length, 0);
+        }
+
+        @Override
+        public double distance(BytesRef bytesRef) {
+            decode(bytesRef.bytes, bytesRef.offset, bytesRef.length, doc);
+            return EdgeHistogramImplementation.calculateDistance(doc, query);
+        }
+
+        @Override
+        public FeatureDistance forLeaf() {
+            return new EdgeHistogramDistance(this);
+        }
+    }
+
+    /**
+     * Fallback for other features, doc bytes are decoded into a feature reused per leaf.
+     * Some features ignore the offset in {@link LireFeature#setByteArrayRepresentation(byte[], int, int)},
+     * so bytes not starting at 0 are copied to a buffer first.
+     */
+    static final class LireFeatureDistance extends FeatureDistance {
+        private final LireFeature queryFeature;
+        private final LireFeature docFeature;
+        private byte[] buffer = new byte[0];
+
+        LireFeatureDistance(LireFeature queryFeature, LireFeature docFeature) {
+            this.queryFeature = queryFeature;
+            this.docFeature = docFeature;
+        }
+
+        @Override
+        public double distance(BytesRef bytesRef) {
+            if (bytesRef.offset == 0) {
+                docFeature.setByteArrayRepresentation(bytesRef.bytes, 0, bytesRef.length);
+            } else {
+                if (buffer.length < bytesRef.length) {
+                    buffer = new byte[bytesRef.length];
+                }
+                System.arraycopy(bytesRef.bytes, bytesRef.offset, buffer, 0, bytesRef.length);
+                docFeature.setByteArrayRepresentation(buffer, 0, bytesRef.length);
+            }
+            return queryFeature.getDistance(docFeature);
+        }
+
+        @Override
+        public FeatureDistance forLeaf() {
+            return new LireFeatureDistance(queryFeature, newFeature(queryFeature.getClass()));
+        }
+    }
+}
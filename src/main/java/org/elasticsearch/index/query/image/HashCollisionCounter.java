@@ -0,0 +1,111 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.index.mapper.image.HashEncodingEnum;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Count for every doc of a segment how many of the query hashes it shares, walking each hash postings list once.
+ * Counts are kept in a byte array indexed by doc id and saturate at 255. A counter holds no state of a reader, it
+ * is created once per query and counts segments concurrently.
+ */
+final class HashCollisionCounter {
+
+    public static final int MAX_COUNT = 255;
+
+    private final String hashFieldName;
+    private final Term[] terms;
+
+    HashCollisionCounter(String hashFieldName, HashEncodingEnum hashEncoding, int[] hashes) {
+        int[] distinctHashes = distinct(hashes);
+        this.hashFieldName = hashFieldName;
+        this.terms = new Term[distinctHashes.length];
+        for (int i = 0; i < distinctHashes.length; i++) {
+            terms[i] = new Term(hashFieldName, hashEncoding.term(distinctHashes[i]));
+        }
+    }
+
+    /**
+     * Sorted hashes without duplicates
+     */
+    static int[] distinct(int[] hashes) {
+        int[] sorted = Arrays.copyOf(hashes, hashes.length);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    Term[] terms() {
+        return terms;
+    }
+
+    /**
+     * Returns the collisions of the given segment, or null if no doc shares at least minHashMatch hashes
+     */
+    Collisions count(LeafReaderContext context, int minHashMatch) throws IOException {
+        Terms fieldTerms = context.reader().terms(hashFieldName);
+        if (fieldTerms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = fieldTerms.iterator();
+        byte[] counts = null;
+        FixedBitSet matches = null;
+        PostingsEnum postings = null;
+
+        for (Term term : terms) {
+            if (!termsEnum.seekExact(term.bytes())) {  // term is not present in that reader
+                continue;
+            }
+            if (counts == null) {
+                counts = new byte[context.reader().maxDoc()];
+            }
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                int count = counts[doc] & 0xFF;
+                if (count < MAX_COUNT) {
+                    counts[doc] = (byte) ++count;
+                }
+                if (count == minHashMatch) {
+                    if (matches == null) {
+                        matches = new FixedBitSet(counts.length);
+                    }
+                    matches.set(doc);
+                }
+            }
+        }
+        return matches == null ? null : new Collisions(counts, matches);
+    }
+
+    static final class Collisions {
+        private final byte[] counts;
+        private final FixedBitSet matches;
+
+        Collisions(byte[] counts, FixedBitSet matches) {
+            this.counts = counts;
+            this.matches = matches;
+        }
+
+        /**
+         * Number of query hashes shared by the given doc
+         */
+        int count(int doc) {
+            return counts[doc] & 0xFF;
+        }
+
+        /**
+         * Docs sharing at least minHashMatch hashes
+         */
+        FixedBitSet matches() {
+            return matches;
+        }
+    }
+}
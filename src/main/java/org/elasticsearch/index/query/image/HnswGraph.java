@@ -0,0 +1,370 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.elasticsearch.ElasticsearchImageProcessException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph over the features of a segment, see
+ * "Efficient and robust approximate nearest neighbor search using Hierarchical Navigable Small World graphs"
+ * (Malkov, Yashunin). Nodes are segment doc ids, distances are the {@link FeatureDistance} of the feature.
+ * <p>
+ * Each doc with a feature is linked to its nearest docs found at insertion, at most 2 * m links on level 0 and
+ * m links on higher levels. A search descends greedily from the top level and explores ef nodes on level 0.
+ * Deleted docs stay in the graph to keep it connected, they are only skipped in the results.
+ */
+final class HnswGraph {
+
+    private static final int[] NO_LINKS = new int[0];
+    private static final float[] NO_DISTANCES = new float[0];
+
+    private final int maxDoc;
+    private final int[][][] links;  // [doc][level] -> linked docs, null for docs without feature
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    private HnswGraph(int maxDoc) {
+        this.maxDoc = maxDoc;
+        this.links = new int[maxDoc][][];
+    }
+
+    /**
+     * Build the graph of the features of the given field in a segment
+     */
+    static HnswGraph build(LeafReader reader, String luceneFieldName, Class<? extends LireFeature> featureClass, int m, int efConstruction) throws IOException {
+        return new Builder(reader, luceneFieldName, featureClass, m, efConstruction).build();
+    }
+
+    /**
+     * Upper bound of the heap used while building the graph of a segment, to account it before building
+     */
+    static long estimateBytes(int maxDoc, int m) {
+        // links and distances of level 0, and of higher levels for the few docs reaching them
+        long perDoc = 2L * (RamUsageEstimator.NUM_BYTES_OBJECT_REF + 3L * RamUsageEstimator.NUM_BYTES_ARRAY_HEADER)
+                + 2L * 3 * m * RamUsageEstimator.NUM_BYTES_INT;
+        return (long) maxDoc * perDoc;
+    }
+
+    /**
+     * Heap used by the links of the graph
+     */
+    long ramBytesUsed() {
+        long bytes = RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) maxDoc * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+        for (int[][] docLinks : links) {
+            if (docLinks == null) {
+                continue;
+            }
+            bytes += RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) docLinks.length * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+            for (int[] levelLinks : docLinks) {
+                if (levelLinks != NO_LINKS) {
+                    bytes += RamUsageEstimator.sizeOf(levelLinks);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Top k live docs nearest to the query, the score of a candidate is the negated distance
+     */
+    TopCandidates.CandidateQueue search(LeafReaderContext leaf, BinaryDocValues values, FeatureDistance distance, int ef, int k) {
+        TopCandidates.CandidateQueue queue = new TopCandidates.CandidateQueue(Math.min(k, maxDoc));
+        if (entryPoint == -1) {
+            return queue;
+        }
+
+        Visited visited = new Visited(new SparseFixedBitSet(maxDoc));
+        NodeHeap entries = new NodeHeap(1, true);
+        entries.push(entryPoint, distance.distance(values.get(entryPoint)));
+        for (int level = maxLevel; level > 0; level--) {
+            entries = searchLevel(values, distance, entries, 1, level, visited);
+            visited.clear();
+        }
+        NodeHeap nearest = searchLevel(values, distance, entries, Math.min(Math.max(ef, k), maxDoc), 0, visited);
+
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        for (int i = 0; i < nearest.size; i++) {
+            int doc = nearest.nodes[i];
+            if (liveDocs == null || liveDocs.get(doc)) {
+                queue.insertWithOverflow(new ScoreDoc(leaf.docBase + doc, (float) -nearest.distances[i], leaf.ord));
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Nearest ef nodes to the query on a level, starting from the given entries, as a heap with the farthest on top
+     */
+    private NodeHeap searchLevel(BinaryDocValues values, FeatureDistance distance, NodeHeap entries, int ef, int level, Visited visited) {
+        NodeHeap candidates = new NodeHeap(ef, false);
+        NodeHeap nearest = new NodeHeap(ef, true);
+        for (int i = 0; i < entries.size; i++) {
+            visited.add(entries.nodes[i]);
+            candidates.push(entries.nodes[i], entries.distances[i]);
+            nearest.push(entries.nodes[i], entries.distances[i]);
+        }
+        while (nearest.size > ef) {
+            nearest.pop();
+        }
+
+        while (candidates.size > 0) {
+            if (nearest.size >= ef && candidates.topDistance() > nearest.topDistance()) {
+                break;
+            }
+            int node = candidates.pop();
+            for (int neighbour : links[node][level]) {
+                if (!visited.add(neighbour)) {
+                    continue;
+                }
+                double d = distance.distance(values.get(neighbour));
+                if (nearest.size < ef || d < nearest.topDistance()) {
+                    candidates.push(neighbour, d);
+                    nearest.push(neighbour, d);
+                    if (nearest.size > ef) {
+                        nearest.pop();
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private static final class Builder {
+        private final LeafReader reader;
+        private final String luceneFieldName;
+        private final Class<? extends LireFeature> featureClass;
+        private final int m;
+        private final int efConstruction;
+        private final double levelMultiplier;
+        private final Random random;
+        private final HnswGraph graph;
+        private final float[][][] linkDistances;
+        private final Visited visited;
+
+        Builder(LeafReader reader, String luceneFieldName, Class<? extends LireFeature> featureClass, int m, int efConstruction) {
+            this.reader = reader;
+            this.luceneFieldName = luceneFieldName;
+            this.featureClass = featureClass;
+            this.m = m;
+            this.efConstruction = efConstruction;
+            this.levelMultiplier = 1 / Math.log(m);
+            this.random = new Random(reader.maxDoc());
+            this.graph = new HnswGraph(reader.maxDoc());
+            this.linkDistances = new float[reader.maxDoc()][][];
+            this.visited = new Visited(new FixedBitSet(reader.maxDoc()));
+        }
+
+        HnswGraph build() throws IOException {
+            BinaryDocValues values = DocValues.getBinary(reader, luceneFieldName);
+            Bits docsWithField = DocValues.getDocsWithField(reader, luceneFieldName);
+            for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                if (docsWithField.get(doc)) {
+                    insert(values, doc);
+                }
+            }
+            return graph;
+        }
+
+        private void insert(BinaryDocValues values, int doc) {
+            FeatureDistance distance = FeatureDistance.of(feature(values.get(doc)));
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            graph.links[doc] = new int[level + 1][];
+            linkDistances[doc] = new float[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                graph.links[doc][l] = NO_LINKS;
+                linkDistances[doc][l] = NO_DISTANCES;
+            }
+            if (graph.entryPoint == -1) {
+                graph.entryPoint = doc;
+                graph.maxLevel = level;
+                return;
+            }
+
+            NodeHeap entries = new NodeHeap(1, true);
+            entries.push(graph.entryPoint, distance.distance(values.get(graph.entryPoint)));
+            for (int l = graph.maxLevel; l > level; l--) {
+                entries = graph.searchLevel(values, distance, entries, 1, l, visited);
+                visited.clear();
+            }
+            for (int l = Math.min(level, graph.maxLevel); l >= 0; l--) {
+                entries = graph.searchLevel(values, distance, entries, efConstruction, l, visited);
+                visited.clear();
+
+                int maxLinks = l == 0 ? 2 * m : m;
+                NodeHeap nearest = entries.copy();
+                while (nearest.size > maxLinks) {
+                    nearest.pop();
+                }
+                for (int i = 0; i < nearest.size; i++) {
+                    float d = (float) nearest.distances[i];
+                    link(doc, nearest.nodes[i], d, l, maxLinks);
+                    link(nearest.nodes[i], doc, d, l, maxLinks);
+                }
+            }
+            if (level > graph.maxLevel) {
+                graph.entryPoint = doc;
+                graph.maxLevel = level;
+            }
+        }
+
+        /**
+         * Link from a node to another, if the node is full the link replaces its farthest link when it is nearer
+         */
+        private void link(int from, int to, float distance, int level, int maxLinks) {
+            int[] nodes = graph.links[from][level];
+            float[] distances = linkDistances[from][level];
+            if (nodes.length < maxLinks) {
+                nodes = Arrays.copyOf(nodes, nodes.length + 1);
+                distances = Arrays.copyOf(distances, distances.length + 1);
+                nodes[nodes.length - 1] = to;
+                distances[distances.length - 1] = distance;
+                graph.links[from][level] = nodes;
+                linkDistances[from][level] = distances;
+            } else {
+                int farthest = 0;
+                for (int i = 1; i < distances.length; i++) {
+                    if (distances[i] > distances[farthest]) {
+                        farthest = i;
+                    }
+                }
+                if (distance < distances[farthest]) {
+                    nodes[farthest] = to;
+                    distances[farthest] = distance;
+                }
+            }
+        }
+
+        private LireFeature feature(BytesRef bytesRef) {
+            try {
+                LireFeature feature = featureClass.newInstance();
+                BytesRef bytes = BytesRef.deepCopyOf(bytesRef);
+                feature.setByteArrayRepresentation(bytes.bytes, 0, bytes.length);
+                return feature;
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to create feature " + featureClass.getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * Nodes visited by a search, the bits set are remembered so the set can be cleared without a full scan
+     */
+    private static final class Visited {
+        private final BitSet bits;
+        private int[] nodes = new int[16];
+        private int size;
+
+        Visited(BitSet bits) {
+            this.bits = bits;
+        }
+
+        boolean add(int node) {
+            if (bits.get(node)) {
+                return false;
+            }
+            bits.set(node);
+            nodes = ArrayUtil.grow(nodes, size + 1);
+            nodes[size++] = node;
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                bits.clear(nodes[i]);
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Binary heap of nodes by distance, the farthest node on top if max is set, the nearest otherwise
+     */
+    private static final class NodeHeap {
+        private final boolean max;
+        private int[] nodes;
+        private double[] distances;
+        private int size;
+
+        NodeHeap(int initialSize, boolean max) {
+            this.max = max;
+            this.nodes = new int[initialSize + 1];
+            this.distances = new double[initialSize + 1];
+        }
+
+        NodeHeap copy() {
+            NodeHeap copy = new NodeHeap(size, max);
+            System.arraycopy(nodes, 0, copy.nodes, 0, size);
+            System.arraycopy(distances, 0, copy.distances, 0, size);
+            copy.size = size;
+            return copy;
+        }
+
+        double topDistance() {
+            return distances[0];
+        }
+
+        void push(int node, double distance) {
+            if (size == nodes.length) {
+                nodes = ArrayUtil.grow(nodes, size + 1);
+                distances = ArrayUtil.grow(distances, size + 1);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!above(distance, distances[parent])) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int node = nodes[size];
+            double distance = distances[size];
+            int i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && above(distances[child + 1], distances[child])) {
+                    child++;
+                }
+                if (!above(distances[child], distance)) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+            return top;
+        }
+
+        private boolean above(double a, double b) {
+            return max ? a > b : a < b;
+        }
+    }
+}
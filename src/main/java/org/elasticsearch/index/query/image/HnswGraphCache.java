@@ -0,0 +1,204 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesWarmer;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Graphs of the segments of this node, dropped when the segment core is closed. Graphs of the image fields with
+ * {@code graph} in mapping are built when new segments are warmed, before they are searched, other graphs on first use.
+ * Segments never change, so a graph stays valid for the life of its segment; merged segments build a new graph,
+ * docs deleted later are filtered at search time. The heap of the graphs is accounted to the fielddata circuit
+ * breaker, a graph that would exceed its limit is not built.
+ */
+public class HnswGraphCache extends AbstractComponent {
+
+    public static final String WARM = "index.image.graph.warm";
+
+    private static final String BREAKER_LABEL = "image_graph";
+
+    private final CircuitBreakerService breakerService;
+
+    private final ConcurrentMap<Object, ConcurrentMap<List<Object>, GraphHolder>> segmentGraphs = new ConcurrentHashMap<>();
+
+    @Inject
+    public HnswGraphCache(Settings settings, CircuitBreakerService breakerService, IndicesWarmer indicesWarmer) {
+        super(settings);
+        this.breakerService = breakerService;
+        indicesWarmer.addListener(new GraphWarmer());
+    }
+
+    /**
+     * Graph of the given field of a segment, built by the first caller while others wait for it
+     */
+    HnswGraph graph(LeafReader reader, String luceneFieldName, Class<? extends LireFeature> featureClass, int m, int efConstruction) throws IOException {
+        Object coreKey = reader.getCoreCacheKey();
+        ConcurrentMap<List<Object>, GraphHolder> graphs = segmentGraphs.get(coreKey);
+        if (graphs == null) {
+            graphs = new ConcurrentHashMap<>();
+            ConcurrentMap<List<Object>, GraphHolder> existing = segmentGraphs.putIfAbsent(coreKey, graphs);
+            if (existing != null) {
+                graphs = existing;
+            } else {
+                reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+                    @Override
+                    public void onClose(Object ownerCoreCacheKey) {
+                        ConcurrentMap<List<Object>, GraphHolder> removed = segmentGraphs.remove(ownerCoreCacheKey);
+                        if (removed != null) {
+                            for (GraphHolder holder : removed.values()) {
+                                holder.release();
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        List<Object> key = Arrays.<Object>asList(luceneFieldName, featureClass, m, efConstruction);
+        GraphHolder holder = graphs.get(key);
+        if (holder == null) {
+            holder = new GraphHolder();
+            GraphHolder existing = graphs.putIfAbsent(key, holder);
+            if (existing != null) {
+                holder = existing;
+            }
+        }
+        return holder.get(reader, luceneFieldName, featureClass, m, efConstruction);
+    }
+
+    private final class GraphHolder {
+        private HnswGraph graph;
+        private long bytes;
+        private boolean released;
+
+        synchronized HnswGraph get(LeafReader reader, String luceneFieldName, Class<? extends LireFeature> featureClass, int m, int efConstruction) throws IOException {
+            if (released) {  // segment closed while searched, don't cache
+                return HnswGraph.build(reader, luceneFieldName, featureClass, m, efConstruction);
+            }
+            if (graph == null) {
+                CircuitBreaker breaker = breakerService.getBreaker(CircuitBreaker.FIELDDATA);
+                long estimate = HnswGraph.estimateBytes(reader.maxDoc(), m);
+                breaker.addEstimateBytesAndMaybeBreak(estimate, BREAKER_LABEL);
+                HnswGraph built;
+                try {
+                    built = HnswGraph.build(reader, luceneFieldName, featureClass, m, efConstruction);
+                } catch (Throwable t) {
+                    breaker.addWithoutBreaking(-estimate);
+                    throw t;
+                }
+                bytes = built.ramBytesUsed();
+                breaker.addWithoutBreaking(bytes - estimate);
+                graph = built;
+            }
+            return graph;
+        }
+
+        synchronized void release() {
+            breakerService.getBreaker(CircuitBreaker.FIELDDATA).addWithoutBreaking(-bytes);
+            bytes = 0;
+            graph = null;
+            released = true;
+        }
+    }
+
+    /**
+     * Builds the graphs of new segments on the warmer pool, one task per segment and graph
+     */
+    private final class GraphWarmer extends IndicesWarmer.Listener {
+
+        @Override
+        public IndicesWarmer.TerminationHandle warmNewReaders(final IndexShard indexShard, IndexMetaData indexMetaData,
+                                                              IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            if (!indexMetaData.getSettings().getAsBoolean(WARM, true)) {
+                return IndicesWarmer.TerminationHandle.NO_WAIT;
+            }
+            final List<GraphField> fields = new ArrayList<>();
+            for (DocumentMapper docMapper : indexShard.mapperService().docMappers(false)) {
+                for (FieldMapper fieldMapper : docMapper.mappers()) {
+                    if (fieldMapper instanceof ImageMapper) {
+                        ImageMapper.ImageFieldType fieldType = (ImageMapper.ImageFieldType) fieldMapper.fieldType();
+                        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+                            Map<String, Object> graphParams = fieldType.hasFeature(featureEnum) ? fieldType.graphParams(featureEnum) : null;
+                            if (graphParams != null) {
+                                fields.add(new GraphField(fieldType.names().indexName() + "." + featureEnum.name(), featureEnum,
+                                        (Integer) graphParams.get(ImageMapper.GRAPH_M), (Integer) graphParams.get(ImageMapper.GRAPH_EF_CONSTRUCTION)));
+                            }
+                        }
+                    }
+                }
+            }
+            if (fields.isEmpty()) {
+                return IndicesWarmer.TerminationHandle.NO_WAIT;
+            }
+
+            List<LeafReaderContext> leaves = context.searcher().reader().leaves();
+            final CountDownLatch latch = new CountDownLatch(leaves.size() * fields.size());
+            Executor executor = threadPool.executor(executor());
+            for (final LeafReaderContext leaf : leaves) {
+                for (final GraphField field : fields) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                graph(leaf.reader(), field.luceneFieldName, field.featureEnum.getFeatureClass(), field.m, field.efConstruction);
+                            } catch (Throwable t) {
+                                logger.warn("{} failed to warm graph of [{}]", t, indexShard.shardId(), field.luceneFieldName);
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+            return new IndicesWarmer.TerminationHandle() {
+                @Override
+                public void awaitTermination() throws InterruptedException {
+                    latch.await();
+                }
+            };
+        }
+
+        @Override
+        public IndicesWarmer.TerminationHandle warmTopReader(IndexShard indexShard, IndexMetaData indexMetaData,
+                                                             IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            return IndicesWarmer.TerminationHandle.NO_WAIT;
+        }
+    }
+
+    private static final class GraphField {
+        private final String luceneFieldName;
+        private final FeatureEnum featureEnum;
+        private final int m;
+        private final int efConstruction;
+
+        GraphField(String luceneFieldName, FeatureEnum featureEnum, int m, int efConstruction) {
+            this.luceneFieldName = luceneFieldName;
+            this.featureEnum = featureEnum;
+            this.m = m;
+            this.efConstruction = efConstruction;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.elasticsearch.index.query.image;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageDecoders;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node level cache of the features extracted from images to search, keyed by the SHA-1 digest of the image bytes
+ * and the feature. Repeated searches with the same image, like paging or retries, read the cached feature bytes
+ * instead of decoding the image again. Entries are evicted by total size and time since last access.
+ */
+public class ImageFeatureCache extends AbstractComponent {
+
+    public static final String SIZE = "image.feature_cache.size";
+    public static final String EXPIRE = "image.feature_cache.expire";
+
+    private final Cache<String, byte[]> cache;
+    private final long maxSizeInBytes;
+    private final ImageDecoder decoder;
+
+    @Inject
+    public ImageFeatureCache(Settings settings) {
+        super(settings);
+        this.decoder = ImageDecoders.create(settings);
+        this.maxSizeInBytes = settings.getAsBytesSize(SIZE, new ByteSizeValue(10, ByteSizeUnit.MB)).bytes();
+        TimeValue expire = settings.getAsTime(EXPIRE, TimeValue.timeValueMinutes(10));
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeInBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String key, byte[] value) {
+                        return key.length() * 2 + value.length;
+                    }
+                })
+                .expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * The given features of the image, extracting only features not in cache, with a single decode of the image
+     */
+    public Map<FeatureEnum, LireFeature> features(byte[] image, Set<FeatureEnum> featureEnums) {
+        if (maxSizeInBytes <= 0) {
+            return ImageFeatures.extract(decoder, image, featureEnums);
+        }
+        String digest = digest(image);
+        Map<FeatureEnum, LireFeature> features = new EnumMap<>(FeatureEnum.class);
+        Set<FeatureEnum> missing = EnumSet.noneOf(FeatureEnum.class);
+        for (FeatureEnum featureEnum : featureEnums) {
+            byte[] bytes = cache.getIfPresent(key(digest, featureEnum));
+            if (bytes != null) {
+                features.put(featureEnum, ImageFeatures.read(featureEnum, bytes, 0, bytes.length));
+            } else {
+                missing.add(featureEnum);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<FeatureEnum, LireFeature> extracted = ImageFeatures.extract(decoder, image, missing);
+            for (Map.Entry<FeatureEnum, LireFeature> entry : extracted.entrySet()) {
+                cache.put(key(digest, entry.getKey()), entry.getValue().getByteArrayRepresentation());
+            }
+            features.putAll(extracted);
+        }
+        return features;
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long count() {
+        return cache.size();
+    }
+
+    public long maxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static String key(String digest, FeatureEnum featureEnum) {
+        return featureEnum.name() + ":" + digest;
+    }
+
+    private static String digest(byte[] image) {
+        try {
+            return Base64.encodeBytes(MessageDigest.getInstance("SHA-1").digest(image));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ElasticsearchImageProcessException("Failed to digest image", e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.FeatureExtractor;
+import org.elasticsearch.index.mapper.image.ImageDecoder;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Features of the image to search, extracted from the image or read from their byte representation
+ */
+public final class ImageFeatures {
+
+    private ImageFeatures() {
+    }
+
+    /**
+     * Decode the image once and extract each of the given features
+     */
+    public static Map<FeatureEnum, LireFeature> extract(ImageDecoder decoder, byte[] image, Set<FeatureEnum> featureEnums) {
+        Map<FeatureEnum, LireFeature> features = new EnumMap<>(FeatureEnum.class);
+        try {
+            BufferedImage img = decoder.decode(image, ImageMapper.MAX_IMAGE_DIMENSION);
+            FeatureExtractor.extractAll(img, featureEnums, features);
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to parse image", e);
+        }
+        return features;
+    }
+
+    /**
+     * Feature read from a stored or serialized byte representation, raw bytes or base64
+     */
+    public static LireFeature read(FeatureEnum featureEnum, Object value) {
+        BytesReference bytesReference;
+        if (value instanceof BytesRef) {
+            bytesReference = new BytesArray((BytesRef) value);
+        } else if (value instanceof BytesReference) {
+            bytesReference = (BytesReference) value;
+        } else if (value instanceof byte[]) {
+            bytesReference = new BytesArray((byte[]) value);
+        } else {
+            try {
+                bytesReference = new BytesArray(Base64.decode(value.toString()));
+            } catch (IOException e) {
+                throw new ElasticsearchParseException("failed to convert bytes", e);
+            }
+        }
+        return read(featureEnum, bytesReference.array(), bytesReference.arrayOffset(), bytesReference.length());
+    }
+
+    /**
+     * Feature read from its byte representation
+     */
+    public static LireFeature read(FeatureEnum featureEnum, byte[] bytes, int offset, int length) {
+        try {
+            LireFeature feature = featureEnum.getFeatureClass().newInstance();
+            feature.setByteArrayRepresentation(bytes, offset, length);
+            return feature;
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to parse image", e);
+        }
+    }
+}
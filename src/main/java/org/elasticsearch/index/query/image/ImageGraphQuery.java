@@ -0,0 +1,76 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+
+import java.io.IOException;
+
+/**
+ * Select the top n docs by searching the {@link HnswGraph} of each segment, and only calculate score for those docs.
+ * Segments are searched in parallel and their candidates are merged into the global top n.
+ */
+public class ImageGraphQuery extends AbstractTopCandidatesQuery {
+
+    private int m;
+    private int efConstruction;
+    private int ef;
+    private HnswGraphCache graphCache;
+
+    public ImageGraphQuery(String luceneFieldName, int m, int efConstruction, int ef, int maxResult, LireFeature lireFeature, float boost, double maxDistance,
+                           LeafTaskRunner taskRunner, HnswGraphCache graphCache) {
+        super(luceneFieldName, maxResult, lireFeature, boost, maxDistance, taskRunner);
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.ef = ef;
+        this.graphCache = graphCache;
+    }
+
+    @Override
+    protected TopCandidates.CandidateQueue candidates(LeafReaderContext leaf) throws IOException {
+        HnswGraph graph = graphCache.graph(leaf.reader(), luceneFieldName, lireFeature.getClass(), m, efConstruction);
+        BinaryDocValues values = DocValues.getBinary(leaf.reader(), luceneFieldName);
+        return graph.search(leaf, values, featureDistance.forLeaf(), ef, maxResult);
+    }
+
+    @Override
+    public String toString(String field) {
+        return luceneFieldName +
+                "," +
+                m +
+                "," +
+                efConstruction +
+                "," +
+                ef +
+                "," +
+                maxResult +
+                "," +
+                lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
+                (boost != 1.0f ? "^" + Float.toString(boost) : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o))
+            return false;
+
+        ImageGraphQuery that = (ImageGraphQuery) o;
+
+        if (m != that.m) return false;
+        if (efConstruction != that.efConstruction) return false;
+        if (ef != that.ef) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + m;
+        result = 31 * result + efConstruction;
+        result = 31 * result + ef;
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.index.mapper.image.BitCode;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Select the top n docs by Hamming distance of their bit code to the query bit code, and only calculate
+ * score for those docs. Segments are scanned in parallel and their candidates are merged into the global top n.
+ */
+public class ImageHammingQuery extends AbstractTopCandidatesQuery {
+
+    private String bitCodeFieldName;
+    private long[] bitCode;
+
+    public ImageHammingQuery(String bitCodeFieldName, long[] bitCode, int maxResult, String luceneFieldName, LireFeature lireFeature, float boost, double maxDistance, LeafTaskRunner taskRunner) {
+        super(luceneFieldName, maxResult, lireFeature, boost, maxDistance, taskRunner);
+        this.bitCodeFieldName = bitCodeFieldName;
+        this.bitCode = bitCode;
+    }
+
+    /**
+     * Top n live docs of a segment by Hamming distance, the score of a candidate is the negated distance
+     */
+    @Override
+    protected TopCandidates.CandidateQueue candidates(LeafReaderContext leaf) throws IOException {
+        BinaryDocValues bitCodes = DocValues.getBinary(leaf.reader(), bitCodeFieldName);
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        int maxDoc = leaf.reader().maxDoc();
+        TopCandidates.CandidateQueue queue = new TopCandidates.CandidateQueue(Math.min(maxResult, maxDoc));
+        ScoreDoc spare = null;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            int distance = BitCode.distance(bitCode, bitCodes.get(doc));
+            if (distance < 0) {  // no bit code
+                continue;
+            }
+            if (spare == null) {
+                spare = new ScoreDoc(leaf.docBase + doc, -distance, leaf.ord);
+            } else {
+                spare.doc = leaf.docBase + doc;
+                spare.score = -distance;
+            }
+            spare = queue.insertWithOverflow(spare);
+        }
+        return queue;
+    }
+
+    @Override
+    public String toString(String field) {
+        return bitCodeFieldName +
+                "," +
+                Arrays.toString(bitCode) +
+                "," +
+                maxResult +
+                "," +
+                luceneFieldName +
+                "," +
+                lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
+                (boost != 1.0f ? "^" + Float.toString(boost) : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o))
+            return false;
+
+        ImageHammingQuery that = (ImageHammingQuery) o;
+
+        if (!bitCodeFieldName.equals(that.bitCodeFieldName)) return false;
+        if (!Arrays.equals(bitCode, that.bitCode)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + bitCodeFieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(bitCode);
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.elasticsearch.index.mapper.image.HashEncodingEnum;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Query by hash first and only calculate score for docs sharing at least minHashMatch hashes with the query.
+ * All hash postings of a segment are walked once and collisions are counted per doc.
+ */
+public class ImageHashCollisionQuery extends AbstractImageDocsQuery {
+
+    private String hashFieldName;
+    private HashEncodingEnum hashEncoding;
+    private int[] hashes;
+    private int minHashMatch;
+    private HashCollisionCounter counter;
+
+    public ImageHashCollisionQuery(String hashFieldName, HashEncodingEnum hashEncoding, int[] hashes, int minHashMatch, String luceneFieldName, LireFeature lireFeature, float boost, double maxDistance) {
+        super(luceneFieldName, lireFeature, boost, maxDistance);
+        this.hashFieldName = hashFieldName;
+        this.hashEncoding = hashEncoding;
+        this.hashes = HashCollisionCounter.distinct(hashes);
+        this.minHashMatch = minHashMatch;
+        this.counter = new HashCollisionCounter(hashFieldName, hashEncoding, this.hashes);
+    }
+
+    @Override
+    protected void extractTerms(Set<Term> terms) {
+        terms.addAll(Arrays.asList(counter.terms()));
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ImageDocsWeight() {
+            @Override
+            protected DocIdSetIterator docs(LeafReaderContext context) throws IOException {
+                HashCollisionCounter.Collisions collisions = counter.count(context, minHashMatch);
+                if (collisions == null) {
+                    return null;
+                }
+                FixedBitSet matches = collisions.matches();
+                return new BitSetIterator(matches, matches.cardinality());
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return hashFieldName +
+                "," +
+                Arrays.toString(hashes) +
+                "," +
+                minHashMatch +
+                "," +
+                luceneFieldName +
+                "," +
+                lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
+                (boost != 1.0f ? "^" + Float.toString(boost) : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o))
+            return false;
+
+        ImageHashCollisionQuery that = (ImageHashCollisionQuery) o;
+
+        if (minHashMatch != that.minHashMatch) return false;
+        if (!hashFieldName.equals(that.hashFieldName)) return false;
+        if (hashEncoding != that.hashEncoding) return false;
+        if (!Arrays.equals(hashes, that.hashes)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + hashEncoding.hashCode();
+        result = 31 * result + Arrays.hashCode(hashes);
+        result = 31 * result + minHashMatch;
+        return result;
+    }
+}
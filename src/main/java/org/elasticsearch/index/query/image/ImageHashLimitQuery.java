@@ -1,170 +1,72 @@
 package org.elasticsearch.index.query.image;
 
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
-import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.*;
-import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BitSetIterator;
 import org.apache.lucene.util.Bits;
-import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.index.mapper.image.HashEncodingEnum;
 
 import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
+import java.util.Set;
 
 /**
- * Query by hash first and only calculate score for top n matches
+ * Query by hash first and only calculate score for top n matches.
+ * Each segment keeps its own top n docs by hash collisions, segments are processed in parallel
+ * and their candidates are merged into the global top n.
  */
-public class ImageHashLimitQuery extends Query {
+public class ImageHashLimitQuery extends AbstractTopCandidatesQuery {
 
     private String hashFieldName;
+    private HashEncodingEnum hashEncoding;
     private int[] hashes;
-    private int maxResult;
-    private String luceneFieldName;
-    private LireFeature lireFeature;
-    private float boost;
+    private int minHashMatch;
+    private HashCollisionCounter counter;
 
 
-    public ImageHashLimitQuery(String hashFieldName, int[] hashes, int maxResult, String luceneFieldName, LireFeature lireFeature, float boost) {
+    public ImageHashLimitQuery(String hashFieldName, HashEncodingEnum hashEncoding, int[] hashes, int maxResult, int minHashMatch, String luceneFieldName, LireFeature lireFeature, float boost, double maxDistance, LeafTaskRunner taskRunner) {
+        super(luceneFieldName, maxResult, lireFeature, boost, maxDistance, taskRunner);
         this.hashFieldName = hashFieldName;
-        this.hashes = hashes;
-        this.maxResult = maxResult;
-        this.luceneFieldName = luceneFieldName;
-        this.lireFeature = lireFeature;
-        this.boost = boost;
+        this.hashEncoding = hashEncoding;
+        this.hashes = HashCollisionCounter.distinct(hashes);
+        this.minHashMatch = minHashMatch;
+        this.counter = new HashCollisionCounter(hashFieldName, hashEncoding, this.hashes);
     }
 
-    final class ImageHashScorer extends AbstractImageScorer {
-        private int doc = -1;
-        private final int maxDoc;
-        private final int docBase;
-        private final BitSet bitSet;
-        private final Bits liveDocs;
-
-        ImageHashScorer(Weight weight, BitSet bitSet, LeafReaderContext context, Bits liveDocs) {
-            super(weight, luceneFieldName, lireFeature, context.reader(), boost);
-            this.bitSet = bitSet;
-            this.liveDocs = liveDocs;
-            maxDoc = context.reader().maxDoc();
-            docBase = context.docBase;
-        }
-
-        @Override
-        public int docID() {
-            return doc;
-        }
-
-        @Override
-        public DocIdSetIterator iterator() {
-            return new DocIdSetIterator() {
-                @Override
-                public int docID() {
-                    return doc;
-                }
-
-                @Override
-                public int nextDoc() throws IOException {
-                    int d;
-                    do {
-                        d = bitSet.nextSetBit(docBase + doc + 1);
-                        if (d == -1 || d >= maxDoc + docBase) {
-                            doc = NO_MORE_DOCS;
-                        } else {
-                            doc = d - docBase;
-                        }
-                    } while (doc != NO_MORE_DOCS && d < maxDoc + docBase && liveDocs != null && !liveDocs.get(doc));
-                    return doc;
-                }
-
-                @Override
-                public int advance(int target) throws IOException {
-                    doc = target - 1;
-                    return nextDoc();
-                }
-
-                @Override
-                public long cost() {
-                    return maxDoc;
-                }
-            };
-        }
-    }
-
-    final class ImageHashLimitWeight extends Weight {
-        private final BitSet bitSet;
-        private final IndexSearcher searcher;
-
-        public ImageHashLimitWeight(IndexSearcher searcher, BitSet bitSet) throws IOException {
-            super(ImageHashLimitQuery.this);
-            this.bitSet = bitSet;
-            this.searcher = searcher;
-        }
-
-        @Override
-        public String toString() {
-            return "weight(" + ImageHashLimitQuery.this + ")";
-        }
-
-        @Override
-        public float getValueForNormalization() {
-            return 1f;
-        }
-
-        @Override
-        public void normalize(float queryNorm, float topLevelBoost) {
-        }
-
-        @Override
-        public Scorer scorer(LeafReaderContext context) {
-            return new ImageHashScorer(this, bitSet, context, context.reader().getLiveDocs());
-        }
-
-        @Override
-        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
-            Scorer scorer = scorer(context);
-            if (scorer != null) {
-                int newDoc = scorer.iterator().advance(doc);
-                if (newDoc == doc) {
-                    float score = scorer.score();
-                    List<Explanation> details = new ArrayList<>();
-                    if (boost != 1.0f) {
-                        details.add(Explanation.match(boost, "boost"));
-                        score = score / boost;
-                    }
-                    details.add(Explanation.match(score, "image score (1/distance)"));
-                    return Explanation.match(score, ImageHashLimitQuery.this.toString() + ", product of:", details);
-                }
-            }
-            return Explanation.noMatch(ImageHashLimitQuery.this.toString() + " doesn't match id " + doc);
-        }
-
-        @Override
-        public void extractTerms(Set<Term> terms) {
-
-        }
+    @Override
+    protected void extractTerms(Set<Term> terms) {
+        terms.addAll(Arrays.asList(counter.terms()));
     }
 
+    /**
+     * Top n live docs of a segment by hash collisions, doc ids are global and the segment ord is kept in shardIndex
+     */
     @Override
-    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
-        IndexSearcher indexSearcher = new IndexSearcher(searcher.getIndexReader());
-        indexSearcher.setSimilarity(new SimpleSimilarity());
-
-        BooleanQuery.Builder builder = new BooleanQuery.Builder();
-        for (int h : hashes) {
-            builder.add(new BooleanClause(new TermQuery(new Term(hashFieldName, Integer.toString(h))), BooleanClause.Occur.SHOULD));
-        }
-        TopDocs topDocs = indexSearcher.search(builder.build(), maxResult);
-
-        if (topDocs.scoreDocs.length == 0) {  // no result find
-            return Queries.newMatchNoDocsQuery().createWeight(searcher, needsScores);
-        }
-
-        BitSet bitSet = new BitSet(topDocs.scoreDocs.length);
-        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-            bitSet.set(scoreDoc.doc);
+    protected TopCandidates.CandidateQueue candidates(LeafReaderContext leaf) throws IOException {
+        HashCollisionCounter.Collisions collisions = counter.count(leaf, minHashMatch);
+        if (collisions == null) {
+            return null;
+        }
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        DocIdSetIterator matches = new BitSetIterator(collisions.matches(), 0);
+        TopCandidates.CandidateQueue queue = new TopCandidates.CandidateQueue(Math.min(maxResult, collisions.matches().cardinality()));
+        ScoreDoc spare = null;
+        for (int doc = matches.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = matches.nextDoc()) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            if (spare == null) {
+                spare = new ScoreDoc(leaf.docBase + doc, collisions.count(doc), leaf.ord);
+            } else {
+                spare.doc = leaf.docBase + doc;
+                spare.score = collisions.count(doc);
+            }
+            spare = queue.insertWithOverflow(spare);
         }
-
-        return new ImageHashLimitWeight(searcher, bitSet);
+        return queue;
     }
 
     @Override
@@ -175,25 +77,27 @@ public class ImageHashLimitQuery extends Query {
                 "," +
                 maxResult +
                 "," +
+                minHashMatch +
+                "," +
                 luceneFieldName +
                 "," +
                 lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
                 (boost != 1.0f ? "^" + Float.toString(boost) : "");
     }
 
 
     @Override
     public boolean equals(Object o) {
-        if (!(o instanceof ImageHashLimitQuery))
+        if (!super.equals(o))
             return false;
 
         ImageHashLimitQuery that = (ImageHashLimitQuery) o;
 
-        if (maxResult != that.maxResult) return false;
+        if (minHashMatch != that.minHashMatch) return false;
         if (!hashFieldName.equals(that.hashFieldName)) return false;
+        if (hashEncoding != that.hashEncoding) return false;
         if (!Arrays.equals(hashes, that.hashes)) return false;
-        if (!lireFeature.equals(that.lireFeature)) return false;
-        if (!luceneFieldName.equals(that.luceneFieldName)) return false;
 
         return true;
     }
@@ -202,43 +106,9 @@ public class ImageHashLimitQuery extends Query {
     public int hashCode() {
         int result = super.hashCode();
         result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + hashEncoding.hashCode();
         result = 31 * result + Arrays.hashCode(hashes);
-        result = 31 * result + maxResult;
-        result = 31 * result + luceneFieldName.hashCode();
-        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + minHashMatch;
         return result;
     }
-
-
-    final class SimpleSimilarity extends ClassicSimilarity {
-        @Override
-        public float tf(float freq) {
-            return 1;
-        }
-
-        @Override
-        public float idf(long docFreq, long numDocs) {
-            return 1;
-        }
-
-        @Override
-        public float coord(int overlap, int maxOverlap) {
-            return 1;
-        }
-
-        @Override
-        public float queryNorm(float sumOfSquaredWeights) {
-            return 1;
-        }
-
-        @Override
-        public float lengthNorm(FieldInvertState state) {
-            return 1;
-        }
-
-        @Override
-        public float sloppyFreq(int distance) {
-            return 1;
-        }
-    }
 }
@@ -0,0 +1,128 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.index.mapper.image.HashEncodingEnum;
+import org.elasticsearch.index.mapper.image.IvfPqFunctions;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Select the top n docs of the probed {@link IvfPqFunctions} lists by approximate distance of their product quantizer
+ * code, and only calculate score for those docs. Segments are scanned in parallel and their candidates are merged
+ * into the global top n.
+ */
+public class ImageIvfQuery extends AbstractTopCandidatesQuery {
+
+    private String hashFieldName;
+    private HashEncodingEnum hashEncoding;
+    private int[] lists;
+    private float[][][] distanceTables;  // per probed list
+    private String pqCodeFieldName;
+
+    public ImageIvfQuery(String hashFieldName, HashEncodingEnum hashEncoding, IvfPqFunctions functions, int[] lists, String pqCodeFieldName,
+                         int maxResult, String luceneFieldName, LireFeature lireFeature, float boost, double maxDistance, LeafTaskRunner taskRunner) {
+        super(luceneFieldName, maxResult, lireFeature, boost, maxDistance, taskRunner);
+        this.hashFieldName = hashFieldName;
+        this.hashEncoding = hashEncoding;
+        this.lists = lists;
+        this.distanceTables = new float[lists.length][][];
+        for (int i = 0; i < lists.length; i++) {
+            distanceTables[i] = functions.distanceTable(lireFeature.getFeatureVector(), lists[i]);
+        }
+        this.pqCodeFieldName = pqCodeFieldName;
+    }
+
+    @Override
+    protected void extractTerms(Set<Term> terms) {
+        for (int list : lists) {
+            terms.add(new Term(hashFieldName, hashEncoding.term(list)));
+        }
+    }
+
+    /**
+     * Top n live docs of the probed lists of a segment by approximate distance, the score of a candidate is
+     * the negated distance
+     */
+    @Override
+    protected TopCandidates.CandidateQueue candidates(LeafReaderContext leaf) throws IOException {
+        Terms terms = leaf.reader().terms(hashFieldName);
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        BinaryDocValues pqCodes = DocValues.getBinary(leaf.reader(), pqCodeFieldName);
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        TopCandidates.CandidateQueue queue = new TopCandidates.CandidateQueue(Math.min(maxResult, leaf.reader().maxDoc()));
+        PostingsEnum postings = null;
+        ScoreDoc spare = null;
+        for (int i = 0; i < lists.length; i++) {
+            if (!termsEnum.seekExact(hashEncoding.term(lists[i]))) {
+                continue;
+            }
+            postings = termsEnum.postings(postings, PostingsEnum.NONE);
+            for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                float distance = IvfPqFunctions.distance(distanceTables[i], pqCodes.get(doc));
+                if (distance < 0) {  // no code
+                    continue;
+                }
+                if (spare == null) {
+                    spare = new ScoreDoc(leaf.docBase + doc, -distance, leaf.ord);
+                } else {
+                    spare.doc = leaf.docBase + doc;
+                    spare.score = -distance;
+                }
+                spare = queue.insertWithOverflow(spare);
+            }
+        }
+        return queue;
+    }
+
+    @Override
+    public String toString(String field) {
+        return hashFieldName +
+                "," +
+                Arrays.toString(lists) +
+                "," +
+                maxResult +
+                "," +
+                luceneFieldName +
+                "," +
+                lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
+                (boost != 1.0f ? "^" + Float.toString(boost) : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o))
+            return false;
+
+        ImageIvfQuery that = (ImageIvfQuery) o;
+
+        if (!hashFieldName.equals(that.hashFieldName)) return false;
+        if (hashEncoding != that.hashEncoding) return false;
+        if (!Arrays.equals(lists, that.lists)) return false;
+        if (!pqCodeFieldName.equals(that.pqCodeFieldName)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + hashEncoding.hashCode();
+        result = 31 * result + Arrays.hashCode(lists);
+        result = 31 * result + pqCodeFieldName.hashCode();
+        return result;
+    }
+}
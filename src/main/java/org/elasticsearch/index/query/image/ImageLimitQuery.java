@@ -0,0 +1,110 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Select the top n docs by exact distance over all docs, and only calculate score for those docs.
+ * Segments are split into doc id ranges so a shard with few large segments still uses all threads of the
+ * {@link LeafTaskRunner}, each range keeps its own top n and the ranges are merged into the global top n.
+ * Once a range has n candidates, the distance of a doc is abandoned as soon as it can't beat the worst of them,
+ * docs farther than the max distance are never candidates.
+ */
+public class ImageLimitQuery extends AbstractTopCandidatesQuery {
+
+    /**
+     * Segments smaller than this are scanned by a single task
+     */
+    static final int MIN_SLICE_SIZE = 1 << 14;
+
+    public ImageLimitQuery(String luceneFieldName, int maxResult, LireFeature lireFeature, float boost, double maxDistance, LeafTaskRunner taskRunner) {
+        super(luceneFieldName, maxResult, lireFeature, boost, maxDistance, taskRunner);
+    }
+
+    /**
+     * Segments are split into doc id ranges of at least {@link #MIN_SLICE_SIZE} docs, one task per range
+     */
+    @Override
+    protected List<Callable<TopCandidates.CandidateQueue>> candidateTasks(IndexSearcher searcher) {
+        int sliceSize = Math.max(MIN_SLICE_SIZE, (searcher.getIndexReader().maxDoc() + taskRunner.parallelism() - 1) / taskRunner.parallelism());
+        List<Callable<TopCandidates.CandidateQueue>> tasks = new ArrayList<>();
+        for (final LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            int maxDoc = leaf.reader().maxDoc();
+            for (int from = 0; from < maxDoc; from += sliceSize) {
+                final int sliceFrom = from;
+                final int sliceTo = Math.min(maxDoc, from + sliceSize);
+                tasks.add(new Callable<TopCandidates.CandidateQueue>() {
+                    @Override
+                    public TopCandidates.CandidateQueue call() throws IOException {
+                        return candidates(leaf, sliceFrom, sliceTo);
+                    }
+                });
+            }
+        }
+        return tasks;
+    }
+
+    @Override
+    protected TopCandidates.CandidateQueue candidates(LeafReaderContext leaf) throws IOException {
+        return candidates(leaf, 0, leaf.reader().maxDoc());
+    }
+
+    @Override
+    protected boolean docsWithinMaxDistance() {
+        return true;
+    }
+
+    /**
+     * Top n live docs with a feature in the given doc id range of a segment, the score of a candidate is the
+     * negated distance
+     */
+    private TopCandidates.CandidateQueue candidates(LeafReaderContext leaf, int from, int to) throws IOException {
+        BinaryDocValues values = DocValues.getBinary(leaf.reader(), luceneFieldName);
+        Bits docsWithField = DocValues.getDocsWithField(leaf.reader(), luceneFieldName);
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        FeatureDistance distance = featureDistance.forLeaf();
+        int size = Math.min(maxResult, to - from);
+        TopCandidates.CandidateQueue queue = new TopCandidates.CandidateQueue(size);
+        ScoreDoc spare = null;
+        for (int doc = from; doc < to; doc++) {
+            if ((liveDocs != null && !liveDocs.get(doc)) || !docsWithField.get(doc)) {
+                continue;
+            }
+            double bound = queue.size() < size ? maxDistance : Math.min(maxDistance, -queue.top().score);
+            double docDistance = distance.distance(values.get(doc), bound);
+            if (docDistance > bound) {
+                continue;
+            }
+            float score = (float) -docDistance;
+            if (spare == null) {
+                spare = new ScoreDoc(leaf.docBase + doc, score, leaf.ord);
+            } else {
+                spare.doc = leaf.docBase + doc;
+                spare.score = score;
+            }
+            spare = queue.insertWithOverflow(spare);
+        }
+        return queue;
+    }
+
+    @Override
+    public String toString(String field) {
+        return luceneFieldName +
+                "," +
+                maxResult +
+                "," +
+                lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
+                (boost != 1.0f ? "^" + Float.toString(boost) : "");
+    }
+}
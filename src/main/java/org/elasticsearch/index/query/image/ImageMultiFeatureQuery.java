@@ -0,0 +1,239 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calculate score for all docs having every feature, by the weighted mean of the feature distances.
+ * distance = sum(weight * distance of feature) / sum(weight)
+ * score = image score of distance * boost
+ *
+ * A single iterator walks the docs and the doc value of each feature is read once per doc, instead of one scorer
+ * per feature under a boolean query. With a max distance the sum is abandoned as soon as it exceeds the max.
+ */
+public class ImageMultiFeatureQuery extends Query {
+
+    private String[] luceneFieldNames;
+    private LireFeature[] lireFeatures;
+    private FeatureDistance[] featureDistances;
+    private float[] weights;  // normalized to sum 1
+    private float boost;
+    private double maxDistance;
+
+    public ImageMultiFeatureQuery(String fieldName, Map<FeatureEnum, LireFeature> features, Map<FeatureEnum, Float> weights, float boost, double maxDistance) {
+        float totalWeight = 0;
+        for (float weight : weights.values()) {
+            totalWeight += weight;
+        }
+        this.luceneFieldNames = new String[weights.size()];
+        this.lireFeatures = new LireFeature[weights.size()];
+        this.featureDistances = new FeatureDistance[weights.size()];
+        this.weights = new float[weights.size()];
+        int i = 0;
+        for (Map.Entry<FeatureEnum, Float> entry : weights.entrySet()) {
+            luceneFieldNames[i] = fieldName + "." + entry.getKey().name();
+            lireFeatures[i] = features.get(entry.getKey());
+            featureDistances[i] = FeatureDistance.of(lireFeatures[i]);
+            this.weights[i] = entry.getValue() / totalWeight;
+            i++;
+        }
+        this.boost = boost;
+        this.maxDistance = maxDistance;
+    }
+
+    final class ImageMultiFeatureScorer extends Scorer {
+        private final DocIdSetIterator disi;
+        private final TwoPhaseIterator twoPhase;
+        private final BinaryDocValues[] values;
+        private final Bits[] docsWithField;
+        private final FeatureDistance[] distances;
+        private int distanceDoc = -1;
+        private double distance;
+
+        ImageMultiFeatureScorer(Weight weight, LeafReaderContext context) throws IOException {
+            super(weight);
+            this.disi = DocIdSetIterator.all(context.reader().maxDoc());
+            this.values = new BinaryDocValues[luceneFieldNames.length];
+            this.docsWithField = new Bits[luceneFieldNames.length];
+            this.distances = new FeatureDistance[luceneFieldNames.length];
+            for (int i = 0; i < luceneFieldNames.length; i++) {
+                values[i] = DocValues.getBinary(context.reader(), luceneFieldNames[i]);
+                docsWithField[i] = DocValues.getDocsWithField(context.reader(), luceneFieldNames[i]);
+                distances[i] = featureDistances[i].forLeaf();
+            }
+            this.twoPhase = new TwoPhaseIterator(disi) {
+                @Override
+                public boolean matches() throws IOException {
+                    int doc = approximation.docID();
+                    for (Bits bits : docsWithField) {
+                        if (!bits.get(doc)) {
+                            return false;
+                        }
+                    }
+                    return maxDistance == AbstractImageScorer.NO_MAX_DISTANCE || distance(doc, maxDistance) <= maxDistance;
+                }
+
+                @Override
+                public float matchCost() {
+                    return 100 * luceneFieldNames.length;  // roughly the number of feature bins compared
+                }
+            };
+        }
+
+        /**
+         * Weighted mean distance of the given doc, abandoned as soon as it exceeds the bound
+         */
+        double distance(int doc, double bound) {
+            if (doc != distanceDoc) {
+                double sum = 0;
+                try {
+                    for (int i = 0; i < distances.length && sum <= bound; i++) {
+                        if (weights[i] == 0) {
+                            continue;
+                        }
+                        double featureBound = bound == AbstractImageScorer.NO_MAX_DISTANCE ? bound : (bound - sum) / weights[i];
+                        sum += weights[i] * distances[i].distance(values[i].get(doc), featureBound);
+                    }
+                } catch (Exception e) {
+                    throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+                }
+                distance = sum;
+                distanceDoc = doc;
+            }
+            return distance;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return AbstractImageScorer.score(distance(docID(), AbstractImageScorer.NO_MAX_DISTANCE)) * boost;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public int docID() {
+            return disi.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhase;
+        }
+    }
+
+    final class ImageMultiFeatureWeight extends Weight {
+
+        public ImageMultiFeatureWeight() {
+            super(ImageMultiFeatureQuery.this);
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImageMultiFeatureQuery.this + ")";
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            return new ImageMultiFeatureScorer(this, context);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            ImageMultiFeatureScorer scorer = (ImageMultiFeatureScorer) scorer(context);
+            if (scorer.iterator().advance(doc) == doc) {
+                float score = scorer.score();
+                List<Explanation> details = new ArrayList<>();
+                if (boost != 1.0f) {
+                    details.add(Explanation.match(boost, "boost"));
+                    score = score / boost;
+                }
+                details.add(Explanation.match(score, "image score (1/distance), weighted mean distance " + scorer.distance(doc, AbstractImageScorer.NO_MAX_DISTANCE)));
+                return Explanation.match(scorer.score(), ImageMultiFeatureQuery.this.toString() + ", product of:", details);
+            }
+            return Explanation.noMatch(ImageMultiFeatureQuery.this.toString() + " doesn't match id " + doc);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) {
+        return new ImageMultiFeatureWeight();
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < luceneFieldNames.length; i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+            builder.append(luceneFieldNames[i]).append("*").append(weights[i]);
+        }
+        builder.append(maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "");
+        builder.append(boost != 1.0f ? "^" + Float.toString(boost) : "");
+        return builder.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageMultiFeatureQuery))
+            return false;
+
+        ImageMultiFeatureQuery that = (ImageMultiFeatureQuery) o;
+
+        if (boost != that.boost) return false;
+        if (Double.compare(maxDistance, that.maxDistance) != 0) return false;
+        if (!Arrays.equals(weights, that.weights)) return false;
+        if (!Arrays.equals(luceneFieldNames, that.luceneFieldNames)) return false;
+        if (!Arrays.equals(lireFeatures, that.lireFeatures)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + Arrays.hashCode(luceneFieldNames);
+        result = 31 * result + Arrays.hashCode(lireFeatures);
+        result = 31 * result + Arrays.hashCode(weights);
+        long temp = Double.doubleToLongBits(maxDistance);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        result = Float.floatToIntBits(boost) ^ result;
+        return result;
+    }
+}
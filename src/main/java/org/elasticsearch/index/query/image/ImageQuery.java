@@ -19,11 +19,15 @@ public class ImageQuery extends Query {
     private float boost;
     private String luceneFieldName;
     private LireFeature lireFeature;
+    private FeatureDistance featureDistance;
+    private double maxDistance;
 
-    public ImageQuery(String luceneFieldName, LireFeature lireFeature, float boost) {
+    public ImageQuery(String luceneFieldName, LireFeature lireFeature, float boost, double maxDistance) {
         this.luceneFieldName = luceneFieldName;
         this.lireFeature = lireFeature;
+        this.featureDistance = FeatureDistance.of(lireFeature);
         this.boost = boost;
+        this.maxDistance = maxDistance;
     }
 
     private class ImageScorer extends AbstractImageScorer {
@@ -32,14 +36,14 @@ public class ImageQuery extends Query {
         private final DocIdSetIterator disi;
 
         public ImageScorer(IndexReader reader, Weight w, DocIdSetIterator disi) {
-            super(w, luceneFieldName, lireFeature, reader, boost);
-            this.twoPhaseIterator = null;
+            super(w, luceneFieldName, featureDistance, reader, boost, maxDistance);
+            this.twoPhaseIterator = maxDistanceIterator(disi);
             this.disi = disi;
         }
 
         @Override
         public DocIdSetIterator iterator() {
-            return disi;
+            return twoPhaseIterator == null ? disi : TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
         }
 
         @Override
@@ -123,6 +127,7 @@ public class ImageQuery extends Query {
         return luceneFieldName +
                 "," +
                 lireFeature.getClass().getSimpleName() +
+                (maxDistance != AbstractImageScorer.NO_MAX_DISTANCE ? "<=" + maxDistance : "") +
                 (boost != 1.0f ? "^" + Float.toString(boost) : "");
     }
 
@@ -133,6 +138,7 @@ public class ImageQuery extends Query {
         }
         ImageQuery other = (ImageQuery) o;
         return (this.boost == other.boost)
+                && Double.compare(this.maxDistance, other.maxDistance) == 0
                 && luceneFieldName.equals(other.luceneFieldName)
                 && lireFeature.equals(other.lireFeature);
     }
@@ -142,6 +148,8 @@ public class ImageQuery extends Query {
         int result = super.hashCode();
         result = 31 * result + luceneFieldName.hashCode();
         result = 31 * result + lireFeature.hashCode();
+        long temp = Double.doubleToLongBits(maxDistance);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
         result = Float.floatToIntBits(boost) ^ result;
         return result;
     }
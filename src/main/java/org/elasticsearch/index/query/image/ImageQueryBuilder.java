@@ -6,6 +6,8 @@ import org.elasticsearch.index.query.BoostableQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBuilder<ImageQueryBuilder> {
 
@@ -21,6 +23,20 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
 
     private int limit = -1;
 
+    private int minHashMatch = -1;
+
+    private Boolean hamming;
+
+    private int probes = -1;
+
+    private int ef = -1;
+
+    private double maxDistance = -1;
+
+    private Map<String, Float> rerank;
+
+    private Map<String, Float> features;
+
     private String lookupIndex;
 
     private String lookupType;
@@ -55,6 +71,47 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
         return this;
     }
 
+    public ImageQueryBuilder minHashMatch(int minHashMatch) {
+        this.minHashMatch = minHashMatch;
+        return this;
+    }
+
+    public ImageQueryBuilder hamming(boolean hamming) {
+        this.hamming = hamming;
+        return this;
+    }
+
+    public ImageQueryBuilder probes(int probes) {
+        this.probes = probes;
+        return this;
+    }
+
+    public ImageQueryBuilder ef(int ef) {
+        this.ef = ef;
+        return this;
+    }
+
+    public ImageQueryBuilder maxDistance(double maxDistance) {
+        this.maxDistance = maxDistance;
+        return this;
+    }
+
+    public ImageQueryBuilder rerank(String feature, float weight) {
+        if (rerank == null) {
+            rerank = new LinkedHashMap<>();
+        }
+        rerank.put(feature, weight);
+        return this;
+    }
+
+    public ImageQueryBuilder features(String feature, float weight) {
+        if (features == null) {
+            features = new LinkedHashMap<>();
+        }
+        features.put(feature, weight);
+        return this;
+    }
+
     public ImageQueryBuilder lookupIndex(String lookupIndex) {
         this.lookupIndex = lookupIndex;
         return this;
@@ -130,6 +187,34 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
             builder.field("limit", limit);
         }
 
+        if (minHashMatch != -1) {
+            builder.field("min_hash_match", minHashMatch);
+        }
+
+        if (hamming != null) {
+            builder.field("hamming", hamming);
+        }
+
+        if (probes != -1) {
+            builder.field("probes", probes);
+        }
+
+        if (ef != -1) {
+            builder.field("ef", ef);
+        }
+
+        if (maxDistance != -1) {
+            builder.field("max_distance", maxDistance);
+        }
+
+        if (rerank != null) {
+            builder.field("rerank", rerank);
+        }
+
+        if (features != null) {
+            builder.field("features", features);
+        }
+
         builder.endObject();
 
         builder.endObject();
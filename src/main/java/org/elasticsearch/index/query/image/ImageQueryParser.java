@@ -1,49 +1,60 @@
 package org.elasticsearch.index.query.image;
 
-import net.semanticmetadata.lire.imageanalysis.features.Extractor;
 import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
-import net.semanticmetadata.lire.indexers.hashing.BitSampling;
-import net.semanticmetadata.lire.indexers.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.util.BytesRef;
-import org.elasticsearch.ElasticsearchImageProcessException;
-import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.common.Base64;
-import org.elasticsearch.common.bytes.BytesArray;
-import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.image.BitCode;
+import org.elasticsearch.index.mapper.image.BitSamplingHashFunctions;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.HashEncodingEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.HashFunctions;
 import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.mapper.image.IvfPqFunctions;
+import org.elasticsearch.index.mapper.image.LshHashFunctions;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.threadpool.ThreadPool;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class ImageQueryParser implements QueryParser {
 
     public static final String NAME = "image";
 
+    public static final String THREAD_POOL = "image_search";
+
     private Client client;
 
+    private LeafTaskRunner taskRunner;
+
+    private HnswGraphCache graphCache;
+
+    private ImageFeatureCache featureCache;
+
     @Inject
-    public ImageQueryParser(Client client) {
+    public ImageQueryParser(Settings settings, Client client, ThreadPool threadPool, ImageFeatureCache featureCache,
+                            HnswGraphCache graphCache) {
         this.client = client;
+        this.featureCache = featureCache;
+        this.graphCache = graphCache;
+        int parallelism = settings.getAsInt("image.search.parallelism", EsExecutors.boundedNumberOfProcessors(settings));
+        this.taskRunner = new LeafTaskRunner(threadPool.executor(THREAD_POOL), parallelism);
     }
 
     @Override
@@ -64,9 +75,17 @@ public class ImageQueryParser implements QueryParser {
         String fieldName = parser.currentName();
         FeatureEnum featureEnum = null;
         byte[] image = null;
+        Map<String, Object> featureBytes = null;
         HashEnum hashEnum = null;
         float boost = 1.0f;
         int limit = -1;
+        int minHashMatch = 1;
+        boolean hamming = false;
+        int probes = 0;
+        int ef = 0;
+        double maxDistance = AbstractImageScorer.NO_MAX_DISTANCE;
+        Map<FeatureEnum, Float> rerank = null;
+        Map<FeatureEnum, Float> fused = null;
 
         String lookupIndex = parseContext.index().name();
         String lookupType = null;
@@ -86,12 +105,28 @@ public class ImageQueryParser implements QueryParser {
                         featureEnum = FeatureEnum.getByName(parser.text());
                     } else if ("image".equals(currentFieldName)) {
                         image = parser.binaryValue();
+                    } else if ("feature_bytes".equals(currentFieldName)) {
+                        featureBytes = parser.map();
                     } else if ("hash".equals(currentFieldName)) {
                         hashEnum = HashEnum.getByName(parser.text());
                     } else if ("boost".equals(currentFieldName)) {
                         boost = parser.floatValue();
                     } else if ("limit".equals(currentFieldName)) {
                         limit = parser.intValue();
+                    } else if ("min_hash_match".equals(currentFieldName)) {
+                        minHashMatch = parser.intValue();
+                    } else if ("hamming".equals(currentFieldName)) {
+                        hamming = parser.booleanValue();
+                    } else if ("probes".equals(currentFieldName)) {
+                        probes = parser.intValue();
+                    } else if ("ef".equals(currentFieldName)) {
+                        ef = parser.intValue();
+                    } else if ("max_distance".equals(currentFieldName)) {
+                        maxDistance = parser.doubleValue();
+                    } else if ("rerank".equals(currentFieldName)) {
+                        rerank = parseFeatureWeights(parseContext, parser);
+                    } else if ("features".equals(currentFieldName)) {
+                        fused = parseFeatureWeights(parseContext, parser);
                     } else if ("index".equals(currentFieldName)) {
                         lookupIndex = parser.text();
                     } else if ("type".equals(currentFieldName)) {
@@ -110,83 +145,209 @@ public class ImageQueryParser implements QueryParser {
             parser.nextToken();
         }
 
-        if (featureEnum == null) {
+        if (featureEnum == null && fused == null) {
             throw new QueryParsingException(parseContext, "No feature specified for image query");
         }
 
-        String luceneFieldName = fieldName + "." + featureEnum.name();
-        LireFeature feature = null;
-
-        if (image != null) {
-            try (InputStream is = new ByteBufferStreamInput(ByteBuffer.wrap(image))) {
-                feature = featureEnum.getFeatureClass().newInstance();
-                BufferedImage img = ImageIO.read(is);
-                if (Math.max(img.getHeight(), img.getWidth()) > ImageMapper.MAX_IMAGE_DIMENSION) {
-                    img = ImageUtils.scaleImage(img, ImageMapper.MAX_IMAGE_DIMENSION);
-                }
-                ((Extractor) feature).extract(img);
-            } catch (Exception e) {
-                throw new ElasticsearchImageProcessException("Failed to parse image", e);
+        if (featureEnum != null && fused != null) {
+            throw new QueryParsingException(parseContext, "[image] query can not use both feature and features");
+        }
+
+        if (fused != null && (hashEnum != null || hamming || ef > 0 || limit > 0 || rerank != null)) {
+            throw new QueryParsingException(parseContext, "[image] query features can not be used with hash, hamming, ef, limit or rerank");
+        }
+
+        if (fused != null) {
+            float totalWeight = 0;
+            for (float weight : fused.values()) {
+                totalWeight += weight;
             }
-        } else if (lookupIndex != null && lookupType != null && lookupId != null && lookupPath != null) {
-            String lookupFieldName = lookupPath + "." + featureEnum.name();
-            GetResponse getResponse = client.get(new GetRequest(lookupIndex, lookupType, lookupId).preference("_local").routing(lookupRouting).fields(lookupFieldName).realtime(false)).actionGet();
-            if (getResponse.isExists()) {
-                GetField getField = getResponse.getField(lookupFieldName);
-                if (getField != null) {
-                    BytesReference bytesReference;
-                    Object value = getField.getValue();
-                    if (value instanceof BytesRef) {
-                        bytesReference = new BytesArray((BytesRef) value);
-                    } else if (value instanceof BytesReference) {
-                        bytesReference = (BytesReference) value;
-                    } else if (value instanceof byte[]) {
-                        bytesReference = new BytesArray((byte[]) value);
-                    } else {
-                        try {
-                            bytesReference = new BytesArray(Base64.decode(value.toString()));
-                        } catch (IOException e) {
-                            throw new ElasticsearchParseException("failed to convert bytes", e);
-                        }
-                    }
+            if (totalWeight <= 0) {
+                throw new QueryParsingException(parseContext, "[image] query features need a positive weight");
+            }
+        }
 
-                    try {
-                        feature = featureEnum.getFeatureClass().newInstance();
-                        feature.setByteArrayRepresentation(bytesReference.array(), bytesReference.arrayOffset(), bytesReference.length());
-                    } catch (Exception e) {
-                        throw new ElasticsearchImageProcessException("Failed to parse image", e);
-                    }
+        if (minHashMatch < 1 || minHashMatch > 255) {
+            throw new QueryParsingException(parseContext, "[image] query min_hash_match must be between 1 and 255");
+        }
+
+        if (probes < 0 || (probes > 0 && hashEnum != HashEnum.LSH && hashEnum != HashEnum.IVF)) {
+            throw new QueryParsingException(parseContext, "[image] query probes must be positive and can only be used with LSH or IVF hash");
+        }
+
+        if (hamming && (hashEnum != null || limit <= 0)) {
+            throw new QueryParsingException(parseContext, "[image] query hamming requires limit and can not be used with hash");
+        }
+
+        if (ef < 0 || (ef > 0 && (hashEnum != null || hamming || limit <= 0))) {
+            throw new QueryParsingException(parseContext, "[image] query ef must be positive, requires limit and can not be used with hash or hamming");
+        }
+
+        if (!(maxDistance >= 0)) {
+            throw new QueryParsingException(parseContext, "[image] query max_distance must not be negative");
+        }
+
+        if (rerank != null && limit <= 0) {
+            throw new QueryParsingException(parseContext, "[image] query rerank requires limit");
+        }
+
+        MappedFieldType fieldType = parseContext.fieldMapper(fieldName);
+        ImageMapper.ImageFieldType imageFieldType = fieldType instanceof ImageMapper.ImageFieldType ? (ImageMapper.ImageFieldType) fieldType : null;
+
+        Set<FeatureEnum> weightedFeatures = EnumSet.noneOf(FeatureEnum.class);
+        if (rerank != null) {
+            weightedFeatures.addAll(rerank.keySet());
+        }
+        if (fused != null) {
+            weightedFeatures.addAll(fused.keySet());
+        }
+        if (imageFieldType != null) {
+            for (FeatureEnum weightedFeature : weightedFeatures) {
+                if (!imageFieldType.hasFeature(weightedFeature)) {
+                    throw new QueryParsingException(parseContext, "[image] query feature " + weightedFeature.name() + " is not in mapping of field " + fieldName);
                 }
             }
         }
-        if (feature == null) {
+
+        Set<FeatureEnum> featureEnums = EnumSet.copyOf(weightedFeatures);
+        if (featureEnum != null) {
+            featureEnums.add(featureEnum);
+        }
+        Map<FeatureEnum, LireFeature> features = null;
+        if (featureBytes != null) {  // extracted on the coordinating node
+            features = readFeatures(featureBytes);
+        } else if (image != null) {
+            features = featureCache.features(image, featureEnums);
+        } else if (lookupIndex != null && lookupType != null && lookupId != null && lookupPath != null) {
+            features = lookupFeatures(lookupIndex, lookupType, lookupId, lookupPath, lookupRouting, featureEnums);
+        }
+        if (features == null || features.isEmpty()) {
             throw new QueryParsingException(parseContext, "No image specified for image query");
         }
+        for (FeatureEnum queryFeature : featureEnums) {
+            if (!features.containsKey(queryFeature)) {
+                throw new QueryParsingException(parseContext, "[image] query image has no feature " + queryFeature.name());
+            }
+        }
 
+        if (fused != null) {  // all features of each image in a single pass
+            return new ImageMultiFeatureQuery(fieldName, features, fused, boost, maxDistance);
+        }
 
-        if (hashEnum == null) {  // no hash, need to scan all documents
-            return new ImageQuery(luceneFieldName, feature, boost);
+        String luceneFieldName = fieldName + "." + featureEnum.name();
+        LireFeature feature = features.get(featureEnum);
+
+
+        Query query;
+        if (ef > 0) {  // select top n by searching the graph of each segment
+            Map<String, Object> graphParams = imageFieldType == null ? null : imageFieldType.graphParams(featureEnum);
+            if (graphParams == null) {
+                throw new QueryParsingException(parseContext, "[image] query ef requires graph in mapping of feature " + featureEnum.name());
+            }
+            int m = (Integer) graphParams.get(ImageMapper.GRAPH_M);
+            int efConstruction = (Integer) graphParams.get(ImageMapper.GRAPH_EF_CONSTRUCTION);
+            query = new ImageGraphQuery(luceneFieldName, m, efConstruction, ef, limit, feature, boost, maxDistance, taskRunner, graphCache);
+        } else if (hamming) {  // select top n by Hamming distance of bit codes
+            int bitCodeLength = imageFieldType == null ? 0 : imageFieldType.bitCodeLength(featureEnum);
+            if (bitCodeLength == 0) {
+                throw new QueryParsingException(parseContext, "[image] query hamming requires bit_code in mapping of feature " + featureEnum.name());
+            }
+            BitSamplingHashFunctions bitSampling = (BitSamplingHashFunctions) imageFieldType.hashFunctions(featureEnum, HashEnum.BIT_SAMPLING);
+            long[] bitCode = BitCode.encode(bitSampling.hashes(feature.getFeatureVector()), bitSampling.bits(), bitCodeLength);
+            String bitCodeFieldName = luceneFieldName + "." + ImageMapper.BIT_CODE;
+            query = new ImageHammingQuery(bitCodeFieldName, bitCode, limit, luceneFieldName, feature, boost, maxDistance, taskRunner);
+        } else if (hashEnum == null && limit > 0) {  // no hash, scan all documents in parallel for the top n
+            query = new ImageLimitQuery(luceneFieldName, limit, feature, boost, maxDistance, taskRunner);
+        } else if (hashEnum == null) {  // no hash, need to scan all documents
+            query = new ImageQuery(luceneFieldName, feature, boost, maxDistance);
         } else {  // query by hash first
-            int[] hash = null;
-            if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-                hash = BitSampling.generateHashes(feature.getFeatureVector());
-            } else if (hashEnum.equals(HashEnum.LSH)) {
-                hash = LocalitySensitiveHashing.generateHashes(feature.getFeatureVector());
+            Map<String, Object> hashParams = imageFieldType == null ? null : imageFieldType.hashParams(featureEnum, hashEnum);
+            if (!hashEnum.trained(hashParams)) {
+                throw new QueryParsingException(parseContext, "[image] query " + hashEnum.name() + " hash of feature " + featureEnum.name() + " is not trained");
+            }
+            HashFunctions hashFunctions = imageFieldType == null ? hashEnum.functions(null) : imageFieldType.hashFunctions(featureEnum, hashEnum);
+            int[] hash;
+            if (hashEnum == HashEnum.IVF) {  // nearest list and the given number of next nearest lists
+                hash = ((IvfPqFunctions) hashFunctions).nearestLists(feature.getFeatureVector(), 1 + probes);
+            } else if (probes > 0) {  // also probe neighbouring LSH buckets
+                hash = ((LshHashFunctions) hashFunctions).probes(feature.getFeatureVector(), probes);
+            } else {
+                hash = hashFunctions.hashes(feature.getFeatureVector());
+            }
+            String hashFieldName = fieldName + "." + (imageFieldType == null ? featureEnum.name() + "." + ImageMapper.HASH + "." + hashEnum.name()
+                    : imageFieldType.hashFieldName(featureEnum, hashEnum));
+            HashEncodingEnum hashEncoding = imageFieldType == null ? HashEncodingEnum.STRING : imageFieldType.hashEncoding(featureEnum);
+
+            if (limit > 0 && hashEnum == HashEnum.IVF) {  // select top n by product quantizer distance
+                String pqCodeFieldName = fieldName + "." + imageFieldType.pqCodeFieldName(featureEnum);
+                query = new ImageIvfQuery(hashFieldName, hashEncoding, (IvfPqFunctions) hashFunctions, hash, pqCodeFieldName, limit, luceneFieldName, feature, boost, maxDistance, taskRunner);
+            } else if (limit > 0) {  // has max result limit, use ImageHashLimitQuery
+                query = new ImageHashLimitQuery(hashFieldName, hashEncoding, hash, limit, minHashMatch, luceneFieldName, feature, boost, maxDistance, taskRunner);
+            } else {  // no max result limit, use ImageHashCollisionQuery
+                query = new ImageHashCollisionQuery(hashFieldName, hashEncoding, hash, minHashMatch, luceneFieldName, feature, boost, maxDistance);
             }
-            String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashEnum.name();
 
-            if (limit > 0) {  // has max result limit, use ImageHashLimitQuery
-                return new ImageHashLimitQuery(hashFieldName, hash, limit, luceneFieldName, feature, boost);
-            } else {  // no max result limit, use ImageHashQuery
-                BooleanQuery.Builder builder = new BooleanQuery.Builder().setDisableCoord(true);
-                ImageScoreCache imageScoreCache = new ImageScoreCache();
+        }
 
-                for (int h : hash) {
-                    builder.add(new BooleanClause(new ImageHashQuery(new Term(hashFieldName, Integer.toString(h)), luceneFieldName, feature, imageScoreCache, boost), BooleanClause.Occur.SHOULD));
-                }
-                return builder.build();
+        if (rerank != null) {  // score the top n images of this feature by the weighted rerank features
+            return new ImageRerankQuery(query, fieldName, features, rerank, boost);
+        }
+        return query;
+    }
+
+    /**
+     * Weight by feature of an object like {"CEDD": 1, "JCD": 0.5}
+     */
+    private Map<FeatureEnum, Float> parseFeatureWeights(QueryParseContext parseContext, XContentParser parser) throws IOException {
+        Map<FeatureEnum, Float> weights = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : parser.map().entrySet()) {
+            FeatureEnum featureEnum = FeatureEnum.getByName(entry.getKey());
+            float weight = XContentMapValues.nodeFloatValue(entry.getValue());
+            if (!(weight >= 0)) {
+                throw new QueryParsingException(parseContext, "[image] query weight of feature " + featureEnum.name() + " must not be negative");
             }
+            weights.put(featureEnum, weight);
+        }
+        if (weights.isEmpty()) {
+            throw new QueryParsingException(parseContext, "[image] query needs at least one weighted feature");
+        }
+        return weights;
+    }
+
+    /**
+     * Features by name of an object like {"CEDD": "base64 feature bytes"}
+     */
+    private Map<FeatureEnum, LireFeature> readFeatures(Map<String, Object> featureBytes) {
+        Map<FeatureEnum, LireFeature> features = new EnumMap<>(FeatureEnum.class);
+        for (Map.Entry<String, Object> entry : featureBytes.entrySet()) {
+            FeatureEnum featureEnum = FeatureEnum.getByName(entry.getKey());
+            features.put(featureEnum, ImageFeatures.read(featureEnum, entry.getValue()));
+        }
+        return features;
+    }
 
+    /**
+     * Fetch the given features of an indexed image in one get request, features the image doesn't have are left out
+     */
+    private Map<FeatureEnum, LireFeature> lookupFeatures(String lookupIndex, String lookupType, String lookupId, String lookupPath, String lookupRouting,
+                                                         Set<FeatureEnum> featureEnums) {
+        Map<FeatureEnum, LireFeature> features = new EnumMap<>(FeatureEnum.class);
+        String[] lookupFieldNames = new String[featureEnums.size()];
+        int i = 0;
+        for (FeatureEnum featureEnum : featureEnums) {
+            lookupFieldNames[i++] = lookupPath + "." + featureEnum.name();
+        }
+        GetResponse getResponse = client.get(new GetRequest(lookupIndex, lookupType, lookupId).preference("_local").routing(lookupRouting).fields(lookupFieldNames).realtime(false)).actionGet();
+        if (!getResponse.isExists()) {
+            return features;
+        }
+        for (FeatureEnum featureEnum : featureEnums) {
+            GetField getField = getResponse.getField(lookupPath + "." + featureEnum.name());
+            if (getField == null) {
+                continue;
+            }
+            features.put(featureEnum, ImageFeatures.read(featureEnum, getField.getValue()));
         }
+        return features;
     }
 }
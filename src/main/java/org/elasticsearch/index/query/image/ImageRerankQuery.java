@@ -0,0 +1,218 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cascade of features, the candidate query selects the top n images by a cheap feature, then only those images are
+ * scored by the weighted sum of the image scores of the rerank features.
+ * score = sum(weight * image score of feature) * boost
+ *
+ * Rerank features are read from the doc values of each feature field, an image without a rerank feature gets
+ * no score for that feature.
+ */
+public class ImageRerankQuery extends Query {
+
+    private Query candidateQuery;
+    private String[] luceneFieldNames;
+    private LireFeature[] lireFeatures;
+    private FeatureDistance[] featureDistances;
+    private float[] weights;
+    private float boost;
+
+    public ImageRerankQuery(Query candidateQuery, String fieldName, Map<FeatureEnum, LireFeature> features, Map<FeatureEnum, Float> rerank, float boost) {
+        this.candidateQuery = candidateQuery;
+        this.luceneFieldNames = new String[rerank.size()];
+        this.lireFeatures = new LireFeature[rerank.size()];
+        this.featureDistances = new FeatureDistance[rerank.size()];
+        this.weights = new float[rerank.size()];
+        int i = 0;
+        for (Map.Entry<FeatureEnum, Float> entry : rerank.entrySet()) {
+            luceneFieldNames[i] = fieldName + "." + entry.getKey().name();
+            lireFeatures[i] = features.get(entry.getKey());
+            featureDistances[i] = FeatureDistance.of(lireFeatures[i]);
+            weights[i] = entry.getValue();
+            i++;
+        }
+        this.boost = boost;
+    }
+
+    final class ImageRerankScorer extends Scorer {
+        private final Scorer candidates;
+        private final BinaryDocValues[] values;
+        private final Bits[] docsWithField;
+        private final FeatureDistance[] distances;
+
+        ImageRerankScorer(Weight weight, Scorer candidates, LeafReaderContext context) throws IOException {
+            super(weight);
+            this.candidates = candidates;
+            this.values = new BinaryDocValues[luceneFieldNames.length];
+            this.docsWithField = new Bits[luceneFieldNames.length];
+            this.distances = new FeatureDistance[luceneFieldNames.length];
+            for (int i = 0; i < luceneFieldNames.length; i++) {
+                values[i] = DocValues.getBinary(context.reader(), luceneFieldNames[i]);
+                docsWithField[i] = DocValues.getDocsWithField(context.reader(), luceneFieldNames[i]);
+                distances[i] = featureDistances[i].forLeaf();
+            }
+        }
+
+        /**
+         * Image score of the rerank feature with the given index, 0 if the image doesn't have the feature
+         */
+        float featureScore(int i) {
+            int doc = docID();
+            if (!docsWithField[i].get(doc)) {
+                return 0;
+            }
+            try {
+                return AbstractImageScorer.score(distances[i].distance(values[i].get(doc)));
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+            }
+        }
+
+        @Override
+        public float score() throws IOException {
+            float score = 0;
+            for (int i = 0; i < weights.length; i++) {
+                score += weights[i] * featureScore(i);
+            }
+            return score * boost;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public int docID() {
+            return candidates.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return candidates.iterator();
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return candidates.twoPhaseIterator();
+        }
+    }
+
+    final class ImageRerankWeight extends Weight {
+        private final Weight candidateWeight;
+
+        public ImageRerankWeight(Weight candidateWeight) {
+            super(ImageRerankQuery.this);
+            this.candidateWeight = candidateWeight;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImageRerankQuery.this + ")";
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float queryNorm, float topLevelBoost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            Scorer candidates = candidateWeight.scorer(context);
+            if (candidates == null) {
+                return null;
+            }
+            return new ImageRerankScorer(this, candidates, context);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            ImageRerankScorer scorer = (ImageRerankScorer) scorer(context);
+            if (scorer != null) {
+                int newDoc = scorer.iterator().advance(doc);
+                if (newDoc == doc) {
+                    List<Explanation> details = new ArrayList<>();
+                    for (int i = 0; i < weights.length; i++) {
+                        float featureScore = scorer.featureScore(i);
+                        details.add(Explanation.match(weights[i] * featureScore, lireFeatures[i].getClass().getSimpleName() + " image score " + featureScore + " * weight " + weights[i]));
+                    }
+                    Explanation sum = Explanation.match(scorer.score() / boost, "sum of:", details);
+                    if (boost == 1.0f) {
+                        return sum;
+                    }
+                    return Explanation.match(scorer.score(), ImageRerankQuery.this.toString() + ", product of:",
+                            Explanation.match(boost, "boost"), sum);
+                }
+            }
+            return Explanation.noMatch(ImageRerankQuery.this.toString() + " doesn't match id " + doc);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            candidateWeight.extractTerms(terms);
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ImageRerankWeight(candidateQuery.createWeight(searcher, false));
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder builder = new StringBuilder(candidateQuery.toString(field));
+        for (int i = 0; i < luceneFieldNames.length; i++) {
+            builder.append(",").append(luceneFieldNames[i]).append("*").append(weights[i]);
+        }
+        builder.append(boost != 1.0f ? "^" + Float.toString(boost) : "");
+        return builder.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageRerankQuery))
+            return false;
+
+        ImageRerankQuery that = (ImageRerankQuery) o;
+
+        if (boost != that.boost) return false;
+        if (!Arrays.equals(weights, that.weights)) return false;
+        if (!Arrays.equals(luceneFieldNames, that.luceneFieldNames)) return false;
+        if (!Arrays.equals(lireFeatures, that.lireFeatures)) return false;
+        if (!candidateQuery.equals(that.candidateQuery)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + candidateQuery.hashCode();
+        result = 31 * result + Arrays.hashCode(luceneFieldNames);
+        result = 31 * result + Arrays.hashCode(lireFeatures);
+        result = 31 * result + Arrays.hashCode(weights);
+        result = Float.floatToIntBits(boost) ^ result;
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.index.query.image;
+
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Run per segment tasks on an executor. The calling thread works on the tasks as well, so all tasks complete
+ * even when the executor is saturated or rejects the helpers, and a search thread never waits on a queued task.
+ */
+public final class LeafTaskRunner {
+
+    private final Executor executor;
+    private final int parallelism;
+
+    public LeafTaskRunner(Executor executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Max number of threads running the tasks of one call, including the calling thread
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Run all tasks and return their results in the order of the tasks
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> run(final List<? extends Callable<T>> tasks) throws IOException {
+        final Object[] results = new Object[tasks.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < tasks.size()) {
+                    try {
+                        if (failure.get() == null) {
+                            results[i] = tasks.get(i).call();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        int helpers = executor == null ? 0 : Math.min(parallelism, tasks.size()) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException | EsRejectedExecutionException e) {
+                break;  // the calling thread runs the remaining tasks
+            }
+        }
+        worker.run();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchImageProcessException("Interrupted while waiting for image search tasks", e);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new ElasticsearchImageProcessException("Failed to run image search task", t);
+        }
+        return new ArrayList<>((List<T>) Arrays.asList(results));
+    }
+}
@@ -0,0 +1,112 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.util.*;
+
+/**
+ * Candidates selected per segment by a cheap score and merged into the top n of the whole reader.
+ * Candidates are {@link ScoreDoc}s with a global doc id and the segment ord in shardIndex.
+ */
+final class TopCandidates {
+
+    private TopCandidates() {
+    }
+
+    /**
+     * Candidates of a segment, the worst candidate is on top, higher doc ids lose ties
+     */
+    static final class CandidateQueue extends PriorityQueue<ScoreDoc> {
+        CandidateQueue(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+            return a.score == b.score ? a.doc > b.doc : a.score < b.score;
+        }
+    }
+
+    /**
+     * Merge segment candidates into the top n, ordered like a search on the top level reader.
+     * Returns the sorted segment doc ids of the top n indexed by segment ord, or null if there is no candidate.
+     */
+    static int[][] merge(List<CandidateQueue> queues, int maxResult, List<LeafReaderContext> leaves) {
+        List<ScoreDoc> candidates = new ArrayList<>();
+        for (CandidateQueue queue : queues) {
+            if (queue != null) {
+                while (queue.size() > 0) {
+                    candidates.add(queue.pop());
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        Collections.sort(candidates, new Comparator<ScoreDoc>() {
+            @Override
+            public int compare(ScoreDoc a, ScoreDoc b) {
+                return a.score == b.score ? Integer.compare(a.doc, b.doc) : Float.compare(b.score, a.score);
+            }
+        });
+        candidates = candidates.subList(0, Math.min(maxResult, candidates.size()));
+
+        int[] leafSizes = new int[leaves.size()];
+        for (ScoreDoc candidate : candidates) {
+            leafSizes[candidate.shardIndex]++;
+        }
+        int[][] leafDocs = new int[leaves.size()][];
+        for (ScoreDoc candidate : candidates) {
+            int ord = candidate.shardIndex;
+            if (leafDocs[ord] == null) {
+                leafDocs[ord] = new int[leafSizes[ord]];
+                leafSizes[ord] = 0;
+            }
+            leafDocs[ord][leafSizes[ord]++] = candidate.doc - leaves.get(ord).docBase;
+        }
+        for (int[] docs : leafDocs) {
+            if (docs != null) {
+                Arrays.sort(docs);
+            }
+        }
+        return leafDocs;
+    }
+
+    /**
+     * Iterate over sorted doc ids of a segment
+     */
+    static final class SortedDocsIterator extends DocIdSetIterator {
+        private final int[] docs;
+        private int index = -1;
+        private int doc = -1;
+
+        SortedDocsIterator(int[] docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            return doc = ++index < docs.length ? docs[index] : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) {
+            int i = Arrays.binarySearch(docs, index + 1, docs.length, target);
+            index = i >= 0 ? i : -i - 1;
+            return doc = index < docs.length ? docs[index] : NO_MORE_DOCS;
+        }
+
+        @Override
+        public long cost() {
+            return docs.length;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.action.image.ImageLookupCache;
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.HnswGraphCache;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+
+/**
+ * Node level components of the image plugin
+ */
+public class ImageModule extends AbstractModule {
+
+    private final ImageMapper.TypeParser mapperParser;
+
+    public ImageModule(ImageMapper.TypeParser mapperParser) {
+        this.mapperParser = mapperParser;
+    }
+
+    @Override
+    protected void configure() {
+        requestInjection(mapperParser);
+        bind(ImageFeatureCache.class).asEagerSingleton();
+        bind(ImageLookupCache.class).asEagerSingleton();
+        bind(HnswGraphCache.class).asEagerSingleton();
+    }
+}
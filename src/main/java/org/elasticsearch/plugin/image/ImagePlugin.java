@@ -1,13 +1,32 @@
 package org.elasticsearch.plugin.image;
 
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.action.image.ImageBulkActionFilter;
+import org.elasticsearch.action.image.ImageSearchActionFilter;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.index.mapper.image.ImageMapper;
 import org.elasticsearch.index.query.image.ImageQueryParser;
 import org.elasticsearch.indices.IndicesModule;
 import org.elasticsearch.plugins.Plugin;
-import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.rest.action.image.RestImageCacheStatsAction;
+import org.elasticsearch.rest.action.image.RestImageHashTrainAction;
+
+import java.util.Collection;
+import java.util.Collections;
 
 public class ImagePlugin extends Plugin {
 
+    private final Settings settings;
+
+    private final ImageMapper.TypeParser mapperParser = new ImageMapper.TypeParser();
+
+    public ImagePlugin(Settings settings) {
+        this.settings = settings;
+    }
+
     @Override
     public String name() {
         return "image";
@@ -18,8 +37,43 @@ public class ImagePlugin extends Plugin {
         return "Elasticsearch Image Plugin";
     }
 
+    @Override
+    public Collection<Module> nodeModules() {
+        return Collections.<Module>singletonList(new ImageModule(mapperParser));
+    }
+
+    /**
+     * Fixed size pools extracting features of indexed images, with a bounded queue so indexing is rejected instead
+     * of queueing without limit when extraction can't keep up, and helping image searches, so they never hold
+     * threads or queue slots of the search pool
+     */
+    @Override
+    public Settings additionalSettings() {
+        int processors = EsExecutors.boundedNumberOfProcessors(settings);
+        String extractPrefix = "threadpool." + ImageMapper.THREAD_POOL + ".";
+        String searchPrefix = "threadpool." + ImageQueryParser.THREAD_POOL + ".";
+        return Settings.builder()
+                .put(extractPrefix + "type", "fixed")
+                .put(extractPrefix + "size", processors)
+                .put(extractPrefix + "queue_size", 1000)
+                .put(searchPrefix + "type", "fixed")
+                .put(searchPrefix + "size", processors)
+                .put(searchPrefix + "queue_size", 100)
+                .build();
+    }
+
     public void onModule(IndicesModule indicesModule) {
         indicesModule.registerQueryParser(ImageQueryParser.class);
-        indicesModule.registerMapper(ImageMapper.CONTENT_TYPE, new ImageMapper.TypeParser(new ThreadPool("elasticsearch-image")));
+        indicesModule.registerMapper(ImageMapper.CONTENT_TYPE, mapperParser);
+    }
+
+    public void onModule(ActionModule actionModule) {
+        actionModule.registerFilter(ImageSearchActionFilter.class);
+        actionModule.registerFilter(ImageBulkActionFilter.class);
+    }
+
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestImageHashTrainAction.class);
+        restModule.addRestAction(RestImageCacheStatsAction.class);
     }
 }
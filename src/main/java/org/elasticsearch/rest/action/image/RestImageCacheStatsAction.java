@@ -0,0 +1,67 @@
+package org.elasticsearch.rest.action.image;
+
+import com.google.common.cache.CacheStats;
+import org.elasticsearch.action.image.ImageLookupCache;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.rest.*;
+
+import java.io.IOException;
+
+/**
+ * Stats of the {@link ImageFeatureCache} and {@link ImageLookupCache} of the node receiving the request,
+ * a DELETE clears both caches of that node only. The caches are per node and the request isn't sent to the other
+ * nodes, the response names the node it comes from.
+ */
+public class RestImageCacheStatsAction extends BaseRestHandler {
+
+    private final ClusterService clusterService;
+    private final ImageFeatureCache featureCache;
+    private final ImageLookupCache lookupCache;
+
+    @Inject
+    public RestImageCacheStatsAction(Settings settings, RestController controller, Client client, ClusterService clusterService,
+                                     ImageFeatureCache featureCache, ImageLookupCache lookupCache) {
+        super(settings, controller, client);
+        this.clusterService = clusterService;
+        this.featureCache = featureCache;
+        this.lookupCache = lookupCache;
+        controller.registerHandler(RestRequest.Method.GET, "/_image/cache/_stats", this);
+        controller.registerHandler(RestRequest.Method.DELETE, "/_image/cache", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        if (request.method() == RestRequest.Method.DELETE) {
+            featureCache.clear();
+            lookupCache.clear();
+        }
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        DiscoveryNode node = clusterService.localNode();
+        builder.startObject("node");
+        builder.field("id", node.id());
+        builder.field("name", node.name());
+        builder.endObject();
+        stats(builder, "feature_cache", featureCache.count(), featureCache.maxSizeInBytes(), featureCache.stats());
+        stats(builder, "lookup_cache", lookupCache.count(), lookupCache.maxSizeInBytes(), lookupCache.stats());
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private static void stats(XContentBuilder builder, String name, long count, long maxSizeInBytes, CacheStats stats) throws IOException {
+        builder.startObject(name);
+        builder.field("count", count);
+        builder.field("max_size_in_bytes", maxSizeInBytes);
+        builder.field("hit_count", stats.hitCount());
+        builder.field("miss_count", stats.missCount());
+        builder.field("hit_rate", stats.hitRate());
+        builder.field("eviction_count", stats.evictionCount());
+        builder.endObject();
+    }
+}
@@ -0,0 +1,228 @@
+package org.elasticsearch.rest.action.image;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.functionscore.random.RandomScoreFunctionBuilder;
+import org.elasticsearch.index.query.image.ImageFeatures;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.elasticsearch.index.query.QueryBuilders.functionScoreQuery;
+
+/**
+ * Train the hash functions of an image field on a random sample of the indexed features.
+ * <p>
+ * Each {@link HashEnum#BIT_SAMPLING} hyperplane gets the median projection of the sample as threshold, so every
+ * bit splits the real images in half instead of most images falling into few hash values. {@link HashEnum#IVF}
+ * centroids and codebooks are trained by k-means on the sample. The trained parameters
+ * are stored in the mapping with an increased version, hashes of the new version are indexed in a new field,
+ * so documents have to be reindexed to be found by hash with the trained functions. Training runs on the generic
+ * thread pool, not on the thread receiving the sample.
+ */
+public class RestImageHashTrainAction extends BaseRestHandler {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+    public static final int MAX_SAMPLE_SIZE = 10000;
+
+    private final ThreadPool threadPool;
+
+    @Inject
+    public RestImageHashTrainAction(Settings settings, RestController controller, Client client, ThreadPool threadPool) {
+        super(settings, controller, client);
+        this.threadPool = threadPool;
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/{type}/_image/hash/_train", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        Map<String, Object> body = request.hasContent() ? XContentHelper.convertToMap(request.content(), false).v2() : new HashMap<String, Object>();
+
+        final String field = param(request, body, "field", null);
+        String feature = param(request, body, "feature", null);
+        if (field == null || feature == null) {
+            throw new IllegalArgumentException("[field] and [feature] are required to train hash functions");
+        }
+        final FeatureEnum featureEnum = FeatureEnum.getByName(feature);
+        final HashEnum hashEnum = HashEnum.getByName(param(request, body, "hash", HashEnum.BIT_SAMPLING.name()));
+        if (!hashEnum.trainable()) {
+            throw new IllegalArgumentException(hashEnum.name() + " hash functions can not be trained");
+        }
+        final int sampleSize = Integer.parseInt(param(request, body, "sample_size", Integer.toString(DEFAULT_SAMPLE_SIZE)));
+        if (sampleSize < 1 || sampleSize > MAX_SAMPLE_SIZE) {
+            throw new IllegalArgumentException("[sample_size] must be between 1 and " + MAX_SAMPLE_SIZE);
+        }
+        final long seed = Long.parseLong(param(request, body, "seed", Long.toString(System.nanoTime())));
+
+        client.admin().indices().prepareGetMappings(index).setTypes(type).execute(new ActionListener<GetMappingsResponse>() {
+            @Override
+            public void onResponse(GetMappingsResponse response) {
+                try {
+                    // the trained parameters are put in the mapping of a single index, one model can't fit several
+                    if (response.getMappings().size() != 1) {
+                        throw new IllegalArgumentException("[" + index + "] must resolve to exactly one index to train hash functions, got ["
+                                + response.getMappings().size() + "]");
+                    }
+                    ObjectObjectCursor<String, ImmutableOpenMap<String, MappingMetaData>> indexMappings = response.getMappings().iterator().next();
+                    final String concreteIndex = indexMappings.key;
+                    MappingMetaData mappingMetaData = indexMappings.value.get(type);
+                    if (mappingMetaData == null) {
+                        throw new IllegalArgumentException("No mapping found for [" + concreteIndex + "/" + type + "]");
+                    }
+                    final Map<String, Object> mapping = mappingMetaData.sourceAsMap();
+                    final Map<String, Object> featureMap = featureMap(mapping, field, featureEnum);
+                    Map<String, Object> hashParams = ImageMapper.hashParams(featureMap, hashEnum);
+                    final Map<String, Object> params = hashEnum.parseParams(hashParams == null ? new HashMap<String, Object>() : hashParams);
+                    params.put(HashEnum.VERSION, HashEnum.version(params) + 1);
+
+                    final String featureFieldName = field + "." + featureEnum.name();
+                    client.prepareSearch(concreteIndex).setTypes(type)
+                            .setQuery(functionScoreQuery(new RandomScoreFunctionBuilder().seed(seed)))
+                            .setSize(sampleSize)
+                            .addField(featureFieldName)
+                            .execute(new ActionListener<SearchResponse>() {
+                                @Override
+                                public void onResponse(final SearchResponse response) {
+                                    try {  // training takes a while, not on the network thread the response is received on
+                                        threadPool.executor(ThreadPool.Names.GENERIC).execute(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                try {
+                                                    List<double[]> vectors = new ArrayList<>();
+                                                    for (SearchHit hit : response.getHits()) {
+                                                        SearchHitField hitField = hit.field(featureFieldName);
+                                                        if (hitField != null && hitField.getValue() != null) {
+                                                            vectors.add(featureVector(featureEnum, hitField.getValue()));
+                                                        }
+                                                    }
+                                                    if (vectors.isEmpty()) {
+                                                        throw new IllegalArgumentException("No indexed feature found for [" + featureFieldName + "]");
+                                                    }
+
+                                                    final Map<String, Object> trained = hashEnum.train(params, vectors, seed);
+                                                    putHashParams(featureMap, hashEnum, trained);
+
+                                                    final int samples = vectors.size();
+                                                    client.admin().indices().preparePutMapping(concreteIndex).setType(type)
+                                                            .setSource(Collections.<String, Object>singletonMap(type, mapping))
+                                                            .execute(new ActionListener<PutMappingResponse>() {
+                                                                @Override
+                                                                public void onResponse(PutMappingResponse response) {
+                                                                    try {
+                                                                        XContentBuilder builder = channel.newBuilder();
+                                                                        builder.startObject();
+                                                                        builder.field("acknowledged", response.isAcknowledged());
+                                                                        builder.field("index", concreteIndex);
+                                                                        builder.field("field", field);
+                                                                        builder.field("feature", featureEnum.name());
+                                                                        builder.field("hash", hashEnum.name());
+                                                                        builder.field("version", HashEnum.version(trained));
+                                                                        builder.field("samples", samples);
+                                                                        builder.endObject();
+                                                                        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                                                                    } catch (Throwable e) {
+                                                                        onFailure(e);
+                                                                    }
+                                                                }
+
+                                                                @Override
+                                                                public void onFailure(Throwable e) {
+                                                                    sendFailure(channel, e);
+                                                                }
+                                                            });
+                                                } catch (Throwable e) {
+                                                    sendFailure(channel, e);
+                                                }
+                                            }
+                                        });
+                                    } catch (Throwable e) {
+                                        onFailure(e);
+                                    }
+                                }
+
+                                @Override
+                                public void onFailure(Throwable e) {
+                                    sendFailure(channel, e);
+                                }
+                            });
+                } catch (Throwable e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                sendFailure(channel, e);
+            }
+        });
+    }
+
+    private static String param(RestRequest request, Map<String, Object> body, String name, String defaultValue) {
+        Object value = body.get(name);
+        return value != null ? value.toString() : request.param(name, defaultValue);
+    }
+
+    /**
+     * Feature map of the given image field in the mapping source, fields of objects are separated by dots
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> featureMap(Map<String, Object> mapping, String field, FeatureEnum featureEnum) {
+        Map<String, Object> fieldMapping = mapping;
+        for (String name : field.split("\\.")) {
+            Object properties = fieldMapping.get("properties");
+            if (!(properties instanceof Map) || !(((Map<String, Object>) properties).get(name) instanceof Map)) {
+                throw new IllegalArgumentException("No mapping found for field [" + field + "]");
+            }
+            fieldMapping = (Map<String, Object>) ((Map<String, Object>) properties).get(name);
+        }
+        if (!ImageMapper.CONTENT_TYPE.equals(fieldMapping.get("type"))) {
+            throw new IllegalArgumentException("Field [" + field + "] is not an image field");
+        }
+        Map<String, Object> features = (Map<String, Object>) fieldMapping.get(ImageMapper.FEATURE);
+        if (features == null || !(features.get(featureEnum.name()) instanceof Map)) {
+            throw new IllegalArgumentException("Feature [" + featureEnum.name() + "] is not indexed in field [" + field + "]");
+        }
+        return (Map<String, Object>) features.get(featureEnum.name());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putHashParams(Map<String, Object> featureMap, HashEnum hashEnum, Map<String, Object> params) {
+        Map<String, Object> hashParams = (Map<String, Object>) featureMap.get(ImageMapper.HASH_PARAMS);
+        if (hashParams == null) {
+            hashParams = new HashMap<>();
+            featureMap.put(ImageMapper.HASH_PARAMS, hashParams);
+        }
+        hashParams.put(hashEnum.name(), params);
+    }
+
+    private static double[] featureVector(FeatureEnum featureEnum, Object value) {
+        return ImageFeatures.read(featureEnum, value).getFeatureVector();
+    }
+
+    private void sendFailure(RestChannel channel, Throwable e) {
+        try {
+            channel.sendResponse(new BytesRestResponse(channel, e));
+        } catch (IOException e1) {
+            logger.error("Failed to send failure response", e1);
+        }
+    }
+}
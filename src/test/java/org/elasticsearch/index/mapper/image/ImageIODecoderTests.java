@@ -0,0 +1,111 @@
+package org.elasticsearch.index.mapper.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+
+public class ImageIODecoderTests extends ESTestCase {
+
+    @Test
+    public void test_subsampled_decode_same_as_full_decode() throws Exception {
+        ImageIODecoder decoder = new ImageIODecoder(Settings.EMPTY);
+        byte[] jpeg = encode(getBlockImage(randomIntBetween(2100, 3000), randomIntBetween(1500, 2000)), "jpeg");
+
+        BufferedImage subsampled = decoder.decode(jpeg, ImageMapper.MAX_IMAGE_DIMENSION);
+        BufferedImage full = ImageUtils.scaleImage(ImageIO.read(new ByteArrayInputStream(jpeg)), ImageMapper.MAX_IMAGE_DIMENSION);
+        // both are scaled to the max dimension, the other dimension is rounded from the decoded size so may differ by one
+        assertThat(Math.abs(subsampled.getWidth() - full.getWidth()), lessThanOrEqualTo(1));
+        assertThat(Math.abs(subsampled.getHeight() - full.getHeight()), lessThanOrEqualTo(1));
+        int width = Math.min(subsampled.getWidth(), full.getWidth());
+        int height = Math.min(subsampled.getHeight(), full.getHeight());
+
+        // pixels of the common area only differ around the edges of the blocks
+        long diff = 0;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                Color a = new Color(subsampled.getRGB(x, y));
+                Color b = new Color(full.getRGB(x, y));
+                diff += Math.abs(a.getRed() - b.getRed()) + Math.abs(a.getGreen() - b.getGreen()) + Math.abs(a.getBlue() - b.getBlue());
+            }
+        }
+        double meanDiff = (double) diff / (3L * width * height);
+        assertThat("Mean difference per channel", meanDiff, lessThan(8d));
+
+        // and the features are nearer than the features of another image
+        LireFeature subsampledFeature = FeatureExtractor.extract(FeatureEnum.CEDD, FeatureExtractor.sharedImage(subsampled));
+        LireFeature fullFeature = FeatureExtractor.extract(FeatureEnum.CEDD, FeatureExtractor.sharedImage(full));
+        LireFeature otherFeature = FeatureExtractor.extract(FeatureEnum.CEDD, FeatureExtractor.sharedImage(getBlockImage(full.getWidth(), full.getHeight())));
+        assertThat(subsampledFeature.getDistance(fullFeature), lessThan(otherFeature.getDistance(fullFeature)));
+    }
+
+    @Test
+    public void test_small_image_decoded_without_scaling() throws Exception {
+        ImageIODecoder decoder = new ImageIODecoder(Settings.EMPTY);
+        BufferedImage image = getBlockImage(randomIntBetween(50, 300), randomIntBetween(50, 300));
+
+        BufferedImage decoded = decoder.decode(encode(image, "png"), ImageMapper.MAX_IMAGE_DIMENSION);
+        assertThat(decoded.getWidth(), equalTo(image.getWidth()));
+        assertThat(decoded.getHeight(), equalTo(image.getHeight()));
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                assertThat(decoded.getRGB(x, y), equalTo(image.getRGB(x, y)));
+            }
+        }
+    }
+
+    @Test
+    public void test_image_over_max_pixels_rejected() throws Exception {
+        ImageIODecoder decoder = new ImageIODecoder(Settings.builder().put(ImageIODecoder.MAX_PIXELS, 10000).build());
+        byte[] small = encode(getBlockImage(100, 100), "png");
+        assertThat(decoder.decode(small, ImageMapper.MAX_IMAGE_DIMENSION).getWidth(), equalTo(100));
+
+        for (String format : new String[]{"png", "jpeg"}) {
+            byte[] large = encode(getBlockImage(200, 100), format);
+            try {
+                decoder.decode(large, ImageMapper.MAX_IMAGE_DIMENSION);
+                fail("Image of more than max pixels should be rejected");
+            } catch (ElasticsearchImageProcessException e) {
+                assertThat(e.getMessage(), containsString(ImageIODecoder.MAX_PIXELS));
+            }
+        }
+        // readers are reusable after a rejection
+        assertThat(decoder.decode(small, ImageMapper.MAX_IMAGE_DIMENSION).getWidth(), equalTo(100));
+    }
+
+    private byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue("No writer for " + format, ImageIO.write(image, format, out));
+        return out.toByteArray();
+    }
+
+    private BufferedImage getBlockImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = image.getGraphics();
+        try {
+            int blockWidth = width / 12 + 1;
+            int blockHeight = height / 8 + 1;
+            for (int x = 0; x < width; x += blockWidth) {
+                for (int y = 0; y < height; y += blockHeight) {
+                    graphics.setColor(new Color(randomInt(1 << 24)));
+                    graphics.fillRect(x, y, blockWidth, blockHeight);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+}
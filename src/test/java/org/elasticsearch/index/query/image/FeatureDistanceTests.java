@@ -0,0 +1,57 @@
+package org.elasticsearch.index.query.image;
+
+import net.semanticmetadata.lire.imageanalysis.features.Extractor;
+import net.semanticmetadata.lire.imageanalysis.features.LireFeature;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class FeatureDistanceTests extends ESTestCase {
+
+    @Test
+    public void test_distance_same_as_lire() throws Exception {
+        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+            LireFeature queryFeature = extract(featureEnum, getRandomImage());
+            FeatureDistance featureDistance = FeatureDistance.of(queryFeature).forLeaf();
+
+            for (int i = 0; i < 5; i++) {
+                byte[] docBytes = extract(featureEnum, getRandomImage()).getByteArrayRepresentation();
+                LireFeature docFeature = featureEnum.getFeatureClass().newInstance();
+                docFeature.setByteArrayRepresentation(docBytes);
+
+                // doc values are not always at the start of the array
+                int offset = randomIntBetween(0, 3);
+                byte[] padded = new byte[docBytes.length + offset + randomIntBetween(0, 3)];
+                System.arraycopy(docBytes, 0, padded, offset, docBytes.length);
+
+                assertThat(featureEnum.name(), featureDistance.distance(new BytesRef(padded, offset, docBytes.length)),
+                        equalTo(queryFeature.getDistance(docFeature)));
+            }
+
+            assertThat(featureEnum.name(), featureDistance.distance(new BytesRef(queryFeature.getByteArrayRepresentation())), equalTo(0d));
+        }
+    }
+
+    private LireFeature extract(FeatureEnum featureEnum, BufferedImage image) throws Exception {
+        LireFeature feature = featureEnum.getFeatureClass().newInstance();
+        ((Extractor) feature).extract(image);
+        return feature;
+    }
+
+    private BufferedImage getRandomImage() {
+        int width = randomIntBetween(50, 300);
+        int height = randomIntBetween(50, 300);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < width; j++) {
+            for (int k = 0; k < height; k++) {
+                image.setRGB(j, k, randomInt(1 << 24));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,149 @@
+package org.elasticsearch.plugin.image.test;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
+import org.apache.sanselan.ImageFormat;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.Sanselan;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.query.image.ImageFeatures;
+import org.elasticsearch.index.query.image.ImageQueryBuilder;
+import org.elasticsearch.plugin.image.ImagePlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.test.ESIntegTestCase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.elasticsearch.client.Requests.putMappingRequest;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Images of bulk requests extracted on the node receiving the bulk, with {@code image.bulk.coordinating_extraction}
+ */
+@ThreadLeakScope(ThreadLeakScope.Scope.NONE)
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE, numDataNodes = 1)
+public class ImageBulkExtractionTests extends ESIntegTestCase {
+
+    private final static String INDEX_NAME = "test";
+    private final static String DOC_TYPE_NAME = "test";
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("image.bulk.coordinating_extraction", true)
+                .build();
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return pluginList(ImagePlugin.class);
+    }
+
+    @Before
+    public void createEmptyIndex() throws Exception {
+        logger.info("creating index [{}]", INDEX_NAME);
+        createIndex(INDEX_NAME);
+        ensureGreen();
+    }
+
+    @Override
+    public Settings indexSettings() {
+        return Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put("index.number_of_shards", 2)
+                .build();
+    }
+
+    @Test
+    public void test_bulk_extraction() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-bulk-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(5, 20);
+        String nameToSearch = null;
+        byte[] imgToSearch = null;
+        BulkRequestBuilder bulkRequestBuilder = client().prepareBulk();
+        for (int i = 0; i < totalImages; i++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            bulkRequestBuilder.add(client().prepareIndex(INDEX_NAME, DOC_TYPE_NAME).setSource(jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject()));
+            if (nameToSearch == null) {
+                nameToSearch = name;
+                imgToSearch = imageByte;
+            }
+        }
+        BulkResponse bulkResponse = bulkRequestBuilder.get();
+        assertNoFailures(bulkResponse);
+        String idToSearch = bulkResponse.getItems()[0].getId();
+        refresh();
+
+        // the source holds the image and the features extracted before the bulk reached the shards
+        GetResponse getResponse = client().prepareGet(INDEX_NAME, DOC_TYPE_NAME, idToSearch)
+                .setFields("_source", "img." + FeatureEnum.CEDD.name(), "img." + FeatureEnum.JCD.name()).get();
+        Map<String, Object> source = getResponse.getSourceAsMap();
+        assertThat("Source should have the image", XContentMapValues.extractValue("img.image", source), notNullValue());
+        assertThat("Source should have the features", XContentMapValues.extractValue("img.features", source), instanceOf(Map.class));
+        for (FeatureEnum featureEnum : new FeatureEnum[]{FeatureEnum.CEDD, FeatureEnum.JCD}) {
+            Object sourceFeature = XContentMapValues.extractValue("img.features." + featureEnum.name(), source);
+            assertThat("Source should have feature " + featureEnum.name(), sourceFeature, notNullValue());
+            assertThat("Indexed feature should be the extracted one",
+                    ImageFeatures.read(featureEnum, getResponse.getField("img." + featureEnum.name()).getValue()).getByteArrayRepresentation(),
+                    equalTo(ImageFeatures.read(featureEnum, sourceFeature).getByteArrayRepresentation()));
+        }
+
+        // search the features and hashes indexed from the extracted features
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name());
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should match at least one image", searchResponse.getHits().getTotalHits(), greaterThanOrEqualTo(1L));
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.JCD.name()).image(imgToSearch);
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat("Should get all images", searchResponse2.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertThat("First should be exact match and has score 1", searchResponse2.getHits().getMaxScore(), equalTo(2.0f));
+        assertImageScore(searchResponse2.getHits(), nameToSearch, 2.0f);
+    }
+
+    private void assertImageScore(SearchHits hits, String name, float score) {
+        for (SearchHit hit : hits) {
+            if (hit.getSource() != null && hit.getSource().get("name").equals(name)) {
+                assertThat(hit.getScore(), equalTo(score));
+                return;
+            }
+        }
+        throw new AssertionError("Image " + name + " not found");
+    }
+
+    private byte[] getRandomImage() throws IOException, ImageWriteException {
+        int width = randomIntBetween(100, 500);
+        int height = randomIntBetween(100, 500);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < width; j++) {
+            for (int k = 0; k < height; k++) {
+                image.setRGB(j, k, randomInt(512));
+            }
+        }
+        ImageFormat format = ImageFormat.IMAGE_FORMAT_TIFF;
+        return Sanselan.writeImageToBytes(image, format, new HashMap());
+    }
+}
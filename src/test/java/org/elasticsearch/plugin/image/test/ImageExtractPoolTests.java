@@ -0,0 +1,127 @@
+package org.elasticsearch.plugin.image.test;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
+import org.apache.sanselan.ImageFormat;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.Sanselan;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.plugin.image.ImagePlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.elasticsearch.client.Requests.putMappingRequest;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.StreamsUtils.copyToStringFromClasspath;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Documents whose images can't be scheduled on a saturated {@code image_extract} pool are rejected before decoding,
+ * their bulk items fail with a too many requests status
+ */
+@ThreadLeakScope(ThreadLeakScope.Scope.NONE)
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.TEST, numDataNodes = 0, numClientNodes = 0)
+public class ImageExtractPoolTests extends ESIntegTestCase {
+
+    private final static String INDEX_NAME = "test";
+    private final static String DOC_TYPE_NAME = "test";
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return pluginList(ImagePlugin.class);
+    }
+
+    @Test
+    public void test_saturated_pool_rejects_document() throws Exception {
+        // a single extracted feature, still decoded and extracted on the pool
+        startNodeAndCreateIndex(Settings.EMPTY, "/mapping/test-bulk-mapping.json");
+        assertRejectedThenIndexed();
+    }
+
+    @Test
+    public void test_saturated_pool_rejects_document_before_shards() throws Exception {
+        startNodeAndCreateIndex(Settings.builder().put("image.bulk.coordinating_extraction", true).build(), "/mapping/test-mapping.json");
+        assertRejectedThenIndexed();
+    }
+
+    private void startNodeAndCreateIndex(Settings settings, String mappingPath) throws Exception {
+        internalCluster().startNode(Settings.builder()
+                .put(settings)
+                .put("threadpool." + ImageMapper.THREAD_POOL + ".size", 1)
+                .put("threadpool." + ImageMapper.THREAD_POOL + ".queue_size", 1)
+                .build());
+        logger.info("creating index [{}]", INDEX_NAME);
+        client().admin().indices().prepareCreate(INDEX_NAME).setSettings(Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put("index.number_of_shards", 1)
+                .put("index.image.use_thread_pool", true)
+                .build()).get();
+        ensureGreen();
+        String mapping = copyToStringFromClasspath(mappingPath);
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+    }
+
+    private void assertRejectedThenIndexed() throws Exception {
+        byte[] image = getRandomImage();
+
+        // occupy the only thread and the only queue slot of the pool
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Executor executor = internalCluster().getInstance(ThreadPool.class).executor(ImageMapper.THREAD_POOL);
+        executor.execute(blocker);
+        started.await();
+        executor.execute(blocker);
+        try {
+            BulkResponse bulkResponse = client().prepareBulk()
+                    .add(client().prepareIndex(INDEX_NAME, DOC_TYPE_NAME, "1").setSource(jsonBuilder().startObject().field("img", image).field("name", "rejected").endObject()))
+                    .get();
+            assertThat("Document should be rejected while the image_extract pool is saturated", bulkResponse.hasFailures(), is(true));
+            assertThat(bulkResponse.getItems()[0].getFailure().getStatus(), equalTo(RestStatus.TOO_MANY_REQUESTS));
+        } finally {
+            release.countDown();
+        }
+
+        // indexed again once the pool has room
+        BulkResponse bulkResponse = client().prepareBulk()
+                .add(client().prepareIndex(INDEX_NAME, DOC_TYPE_NAME, "1").setSource(jsonBuilder().startObject().field("img", image).field("name", "indexed").endObject()))
+                .get();
+        assertThat(bulkResponse.buildFailureMessage(), bulkResponse.hasFailures(), is(false));
+        refresh();
+        assertThat(client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setSize(0).get().getHits().getTotalHits(), equalTo(1L));
+    }
+
+    private byte[] getRandomImage() throws IOException, ImageWriteException {
+        int width = randomIntBetween(100, 500);
+        int height = randomIntBetween(100, 500);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int j = 0; j < width; j++) {
+            for (int k = 0; k < height; k++) {
+                image.setRGB(j, k, randomInt(512));
+            }
+        }
+        ImageFormat format = ImageFormat.IMAGE_FORMAT_TIFF;
+        return Sanselan.writeImageToBytes(image, format, new HashMap());
+    }
+}
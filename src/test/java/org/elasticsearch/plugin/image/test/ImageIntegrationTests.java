@@ -4,20 +4,27 @@ import com.carrotsearch.randomizedtesting.annotations.ThreadLeakScope;
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.image.ImageLookupCache;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.image.ImageFeatures;
 import org.elasticsearch.index.query.image.ImageQueryBuilder;
+import org.elasticsearch.node.Node;
 import org.elasticsearch.plugin.image.ImagePlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.test.rest.client.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -25,6 +32,8 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.elasticsearch.client.Requests.putMappingRequest;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -33,17 +42,20 @@ import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFa
 import static org.hamcrest.Matchers.*;
 
 @ThreadLeakScope(ThreadLeakScope.Scope.NONE)
-@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE, numDataNodes = 1)
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.SUITE, numDataNodes = 1, numClientNodes = 0)
 public class ImageIntegrationTests extends ESIntegTestCase {
 
     private final static String INDEX_NAME = "test";
     private final static String DOC_TYPE_NAME = "test";
+    private final static int NUMBER_OF_SHARDS = 5;
 
 
     @Override
     protected Settings nodeSettings(int nodeOrdinal) {
         return Settings.builder()
                 .put(super.nodeSettings(nodeOrdinal))
+                .put(Node.HTTP_ENABLED, true)
+                .put(ImageLookupCache.SIZE, "1mb")
                 .build();
     }
 
@@ -63,7 +75,7 @@ public class ImageIntegrationTests extends ESIntegTestCase {
     public Settings indexSettings() {
         return Settings.builder()
                 .put("index.number_of_replicas", 0)
-                .put("index.number_of_shards", 5)
+                .put("index.number_of_shards", NUMBER_OF_SHARDS)
                 .put("index.image.use_thread_pool", randomBoolean())
                 .build();
     }
@@ -159,6 +171,301 @@ public class ImageIntegrationTests extends ESIntegTestCase {
         SearchHit hit7 = hits7.getHits()[0];
         assertThat("First should be exact match and has score 1", hit7.getScore(), equalTo(2.0f));
         assertImageScore(hits7, nameToSearch, 2.0f);
+
+        // test search with hash and min hash match
+        ImageQueryBuilder imageQueryBuilder8 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).minHashMatch(2);
+        SearchResponse searchResponse8 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder8).setSize(totalImages).get();
+        assertNoFailures(searchResponse8);
+        SearchHits hits8 = searchResponse8.getHits();
+        assertThat("Should match at least one image", hits8.getTotalHits(), greaterThanOrEqualTo(1L));
+        assertThat("Should not match more images than min hash match 1", hits8.getTotalHits(), lessThanOrEqualTo(hits.getTotalHits()));
+        SearchHit hit8 = hits8.getHits()[0];
+        assertThat("First should be exact match and has score 1", hit8.getScore(), equalTo(2.0f));
+        assertImageScore(hits8, nameToSearch, 2.0f);
+
+        // test search with binary encoded hash
+        ImageQueryBuilder imageQueryBuilder9 = new ImageQueryBuilder("img").feature(FeatureEnum.JCD.name()).image(imgToSearch).hash(HashEnum.LSH.name());
+        SearchResponse searchResponse9 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder9).setSize(totalImages).get();
+        assertNoFailures(searchResponse9);
+        SearchHits hits9 = searchResponse9.getHits();
+        assertThat("Should match at least one image", hits9.getTotalHits(), greaterThanOrEqualTo(1L));
+        SearchHit hit9 = hits9.getHits()[0];
+        assertThat("First should be exact match and has score 1", hit9.getScore(), equalTo(2.0f));
+        assertImageScore(hits9, nameToSearch, 2.0f);
+
+        // test search with hamming distance of bit code
+        ImageQueryBuilder imageQueryBuilder10 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hamming(true).limit(10);
+        SearchResponse searchResponse10 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder10).setSize(totalImages).get();
+        assertNoFailures(searchResponse10);
+        SearchHits hits10 = searchResponse10.getHits();
+        assertThat("Should match at least one image", hits10.getTotalHits(), greaterThanOrEqualTo(1L));
+        assertThat("Should not match more images than limit per shard", hits10.getTotalHits(), lessThanOrEqualTo(10L * NUMBER_OF_SHARDS));
+        SearchHit hit10 = hits10.getHits()[0];
+        assertThat("First should be exact match and has score 1", hit10.getScore(), equalTo(2.0f));
+        assertImageScore(hits10, nameToSearch, 2.0f);
+
+        // test search with multi-probe LSH
+        ImageQueryBuilder imageQueryBuilder11 = new ImageQueryBuilder("img").feature(FeatureEnum.JCD.name()).image(imgToSearch).hash(HashEnum.LSH.name()).probes(2);
+        SearchResponse searchResponse11 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder11).setSize(totalImages).get();
+        assertNoFailures(searchResponse11);
+        SearchHits hits11 = searchResponse11.getHits();
+        assertThat("Probes should not match less images", hits11.getTotalHits(), greaterThanOrEqualTo(hits9.getTotalHits()));
+        SearchHit hit11 = hits11.getHits()[0];
+        assertThat("First should be exact match and has score 1", hit11.getScore(), equalTo(2.0f));
+        assertImageScore(hits11, nameToSearch, 2.0f);
+
+        // test search with graph
+        ImageQueryBuilder imageQueryBuilder12 = new ImageQueryBuilder("img").feature(FeatureEnum.FCTH.name()).image(imgToSearch).ef(20).limit(10);
+        SearchResponse searchResponse12 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder12).setSize(totalImages).get();
+        assertNoFailures(searchResponse12);
+        SearchHits hits12 = searchResponse12.getHits();
+        assertThat("Should match at least one image", hits12.getTotalHits(), greaterThanOrEqualTo(1L));
+        assertThat("Should not match more images than limit per shard", hits12.getTotalHits(), lessThanOrEqualTo(10L * NUMBER_OF_SHARDS));
+        SearchHit hit12 = hits12.getHits()[0];
+        assertThat("First should be exact match and has score 1", hit12.getScore(), equalTo(2.0f));
+        assertImageScore(hits12, nameToSearch, 2.0f);
+
+        // test search without hash and with limit
+        ImageQueryBuilder imageQueryBuilder13 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).limit(10);
+        SearchResponse searchResponse13 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder13).setSize(totalImages).get();
+        assertNoFailures(searchResponse13);
+        SearchHits hits13 = searchResponse13.getHits();
+        assertThat("Should match at least one image", hits13.getTotalHits(), greaterThanOrEqualTo(1L));
+        for (int i = 0; i < Math.min(10, hits13.getHits().length); i++) {
+            assertThat("Should find the nearest images of a full scan", hits13.getAt(i).getScore(), equalTo(hits2.getAt(i).getScore() / 2));
+        }
+        assertImageScore(hits13, nameToSearch, 2.0f);
+
+        // test search with max distance
+        ImageQueryBuilder imageQueryBuilder14 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).maxDistance(1);
+        SearchResponse searchResponse14 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder14).setSize(totalImages).get();
+        assertNoFailures(searchResponse14);
+        SearchHits hits14 = searchResponse14.getHits();
+        long withinMaxDistance = 0;
+        for (SearchHit hit2 : hits2) {
+            if (hit2.getScore() >= 2.0f) {  // distance not more than 1
+                withinMaxDistance++;
+            }
+        }
+        assertThat("Should only match images within max distance", hits14.getTotalHits(), equalTo(withinMaxDistance));
+        assertImageScore(hits14, nameToSearch, 2.0f);
+
+        // test search with cheap feature and rerank features
+        ImageQueryBuilder imageQueryBuilder15 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).limit(10)
+                .rerank(FeatureEnum.JCD.name(), 1.0f).rerank(FeatureEnum.FCTH.name(), 0.5f);
+        SearchResponse searchResponse15 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder15).setSize(totalImages).get();
+        assertNoFailures(searchResponse15);
+        SearchHits hits15 = searchResponse15.getHits();
+        assertThat("Should only score the top images of the cheap feature", hits15.getTotalHits(), equalTo(hits13.getTotalHits()));
+        assertImageScore(hits15, nameToSearch, 3.0f);  // exact match of both rerank features, 2 * 1.0 + 2 * 0.5
+
+        // test search with several weighted features in one pass
+        ImageQueryBuilder imageQueryBuilder16 = new ImageQueryBuilder("img").image(imgToSearch)
+                .features(FeatureEnum.CEDD.name(), 1.0f).features(FeatureEnum.JCD.name(), 0.5f);
+        SearchResponse searchResponse16 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder16).setSize(totalImages).get();
+        assertNoFailures(searchResponse16);
+        SearchHits hits16 = searchResponse16.getHits();
+        assertThat("Should get all images", hits16.getTotalHits(), equalTo((long) totalImages));
+        assertThat("First should be exact match and has score 2", hits16.getMaxScore(), equalTo(2.0f));
+        assertImageScore(hits16, nameToSearch, 2.0f);
+
+        // test index precomputed features without image, as base64 and as array of bytes
+        GetResponse getResponse = client().prepareGet(INDEX_NAME, DOC_TYPE_NAME, idToSearch)
+                .setFields("img." + FeatureEnum.CEDD.name(), "img." + FeatureEnum.JCD.name(), "img." + FeatureEnum.FCTH.name()).get();
+        byte[] cedd = ImageFeatures.read(FeatureEnum.CEDD, getResponse.getField("img." + FeatureEnum.CEDD.name()).getValue()).getByteArrayRepresentation();
+        byte[] jcd = ImageFeatures.read(FeatureEnum.JCD, getResponse.getField("img." + FeatureEnum.JCD.name()).getValue()).getByteArrayRepresentation();
+        byte[] fcth = ImageFeatures.read(FeatureEnum.FCTH, getResponse.getField("img." + FeatureEnum.FCTH.name()).getValue()).getByteArrayRepresentation();
+        int[] fcthValues = new int[fcth.length];
+        for (int i = 0; i < fcth.length; i++) {
+            fcthValues[i] = fcth[i];
+        }
+        String nameOfFeatures = randomAsciiOfLength(6);
+        index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject()
+                .startObject("img").startObject("features")
+                .field(FeatureEnum.CEDD.name(), cedd).field(FeatureEnum.JCD.name(), jcd).field(FeatureEnum.FCTH.name(), fcthValues)
+                .endObject().endObject()
+                .field("name", nameOfFeatures).endObject());
+        refresh();
+        ImageQueryBuilder imageQueryBuilder17 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name());
+        SearchResponse searchResponse17 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder17).setSize(totalImages + 1).get();
+        assertNoFailures(searchResponse17);
+        assertImageScore(searchResponse17.getHits(), nameOfFeatures, 2.0f);  // same features and hashes as the image
+    }
+
+    @Test
+    public void test_train_hash_functions() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(10, 30);
+        String nameToSearch = null;
+        byte[] imgToSearch = null;
+        Map<String, byte[]> images = new HashMap<>();
+        for (int i = 0; i < totalImages; i++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            index(INDEX_NAME, DOC_TYPE_NAME, Integer.toString(i), jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            images.put(name, imageByte);
+            if (nameToSearch == null) {
+                nameToSearch = name;
+                imgToSearch = imageByte;
+            }
+        }
+        refresh();
+
+        // an alias of several indices can't be trained
+        createIndex(INDEX_NAME + "_2");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME + "_2").type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        client().admin().indices().prepareAliases().addAlias(new String[]{INDEX_NAME, INDEX_NAME + "_2"}, "all").get();
+        ensureGreen();
+        HttpResponse aliasResponse = httpClient().method("POST").path("/all/" + DOC_TYPE_NAME + "/_image/hash/_train")
+                .body("{\"field\": \"img\", \"feature\": \"CEDD\", \"hash\": \"BIT_SAMPLING\"}").execute();
+        assertThat("Should reject several indices", aliasResponse.getStatusCode(), equalTo(400));
+
+        HttpResponse trainResponse = httpClient().method("POST").path("/" + INDEX_NAME + "/" + DOC_TYPE_NAME + "/_image/hash/_train")
+                .body("{\"field\": \"img\", \"feature\": \"CEDD\", \"hash\": \"BIT_SAMPLING\", \"seed\": 42}").execute();
+        assertThat(trainResponse.getBody(), trainResponse.getStatusCode(), equalTo(200));
+        Map<String, Object> trained = XContentHelper.convertToMap(trainResponse.getBody().getBytes("UTF-8"), false).v2();
+        assertThat(trained.get("version"), equalTo((Object) 1));
+        assertThat(trained.get("samples"), equalTo((Object) totalImages));
+
+        Map<String, Object> trainedMapping = client().admin().indices().prepareGetMappings(INDEX_NAME).setTypes(DOC_TYPE_NAME).get()
+                .getMappings().get(INDEX_NAME).get(DOC_TYPE_NAME).sourceAsMap();
+        assertThat("Mapping should have the bumped version",
+                XContentMapValues.extractValue("properties.img.feature.CEDD.hash_params.BIT_SAMPLING.version", trainedMapping), equalTo((Object) 1));
+
+        // hashes of the trained functions are only indexed once the images are reindexed
+        int i = 0;
+        for (Map.Entry<String, byte[]> image : images.entrySet()) {
+            index(INDEX_NAME, DOC_TYPE_NAME, Integer.toString(i++), jsonBuilder().startObject().field("img", image.getValue()).field("name", image.getKey()).endObject());
+        }
+        refresh();
+
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name());
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should match at least one image", searchResponse.getHits().getTotalHits(), greaterThanOrEqualTo(1L));
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+    }
+
+    @Test
+    public void test_train_ivf() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-ivf-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(10, 30);
+        String nameToSearch = null;
+        byte[] imgToSearch = null;
+        Map<String, byte[]> images = new HashMap<>();
+        for (int i = 0; i < totalImages; i++) {
+            byte[] imageByte = getRandomImage();
+            String name = randomAsciiOfLength(5);
+            index(INDEX_NAME, DOC_TYPE_NAME, Integer.toString(i), jsonBuilder().startObject().field("img", imageByte).field("name", name).endObject());
+            images.put(name, imageByte);
+            if (nameToSearch == null) {
+                nameToSearch = name;
+                imgToSearch = imageByte;
+            }
+        }
+        refresh();
+
+        HttpResponse trainResponse = httpClient().method("POST").path("/" + INDEX_NAME + "/" + DOC_TYPE_NAME + "/_image/hash/_train")
+                .body("{\"field\": \"img\", \"feature\": \"CEDD\", \"hash\": \"IVF\", \"seed\": 42}").execute();
+        assertThat(trainResponse.getBody(), trainResponse.getStatusCode(), equalTo(200));
+
+        Map<String, Object> trainedMapping = client().admin().indices().prepareGetMappings(INDEX_NAME).setTypes(DOC_TYPE_NAME).get()
+                .getMappings().get(INDEX_NAME).get(DOC_TYPE_NAME).sourceAsMap();
+        assertThat("Mapping should have a centroid per list",
+                (List<?>) XContentMapValues.extractValue("properties.img.feature.CEDD.hash_params.IVF.centroids", trainedMapping), hasSize(4));
+
+        // IVF indexes nothing until trained, reindex the images into their lists
+        int i = 0;
+        for (Map.Entry<String, byte[]> image : images.entrySet()) {
+            index(INDEX_NAME, DOC_TYPE_NAME, Integer.toString(i++), jsonBuilder().startObject().field("img", image.getValue()).field("name", image.getKey()).endObject());
+        }
+        refresh();
+
+        // probing every list scores every image
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.IVF.name()).probes(3);
+        SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+        assertNoFailures(searchResponse);
+        assertThat("Should match all images of all lists", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+
+        // the nearest list only, ranked by product quantizer codes
+        ImageQueryBuilder imageQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.IVF.name()).limit(10);
+        SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder2).setSize(totalImages).get();
+        assertNoFailures(searchResponse2);
+        assertThat("Should match at least one image", searchResponse2.getHits().getTotalHits(), greaterThanOrEqualTo(1L));
+        assertThat("Should not match more images than limit per shard", searchResponse2.getHits().getTotalHits(), lessThanOrEqualTo(10L * NUMBER_OF_SHARDS));
+    }
+
+    @Test
+    public void test_feature_cache_stats() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(3, 10);
+        byte[] imgToSearch = null;
+        for (int i = 0; i < totalImages; i++) {
+            byte[] imageByte = getRandomImage();
+            index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", imageByte).field("name", randomAsciiOfLength(5)).endObject());
+            if (imgToSearch == null) {
+                imgToSearch = imageByte;
+            }
+        }
+        refresh();
+
+        // the first search with an image extracts its features, the same image searched again reads them from the cache
+        long hitCount = ((Number) cacheStats("feature_cache").get("hit_count")).longValue();
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch);
+        for (int i = 0; i < 2; i++) {
+            SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+            assertNoFailures(searchResponse);
+            assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+        }
+        Map<String, Object> stats = cacheStats("feature_cache");
+        assertThat("Repeated image should hit the cache", ((Number) stats.get("hit_count")).longValue(), greaterThan(hitCount));
+        assertThat("Cache should hold the features of the image", ((Number) stats.get("count")).longValue(), greaterThanOrEqualTo(1L));
+
+        HttpResponse clearResponse = httpClient().method("DELETE").path("/_image/cache").execute();
+        assertThat(clearResponse.getBody(), clearResponse.getStatusCode(), equalTo(200));
+        assertThat("Cache should be cleared", ((Number) cacheStats("feature_cache").get("count")).longValue(), equalTo(0L));
+    }
+
+    @Test
+    public void test_lookup_cache_stats() throws Exception {
+        String mapping = copyToStringFromClasspath("/mapping/test-mapping.json");
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+
+        int totalImages = randomIntBetween(3, 10);
+        String nameToSearch = null;
+        for (int i = 0; i < totalImages; i++) {
+            String name = randomAsciiOfLength(5);
+            index(INDEX_NAME, DOC_TYPE_NAME, Integer.toString(i), jsonBuilder().startObject().field("img", getRandomImage()).field("name", name).endObject());
+            if (nameToSearch == null) {
+                nameToSearch = name;
+            }
+        }
+        refresh();
+
+        // the first lookup fetches the features of the document, the same document looked up again reads them from the cache
+        long hitCount = ((Number) cacheStats("lookup_cache").get("hit_count")).longValue();
+        ImageQueryBuilder imageQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).lookupIndex(INDEX_NAME).lookupType(DOC_TYPE_NAME).lookupId("0").lookupPath("img");
+        for (int i = 0; i < 2; i++) {
+            SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(imageQueryBuilder).setSize(totalImages).get();
+            assertNoFailures(searchResponse);
+            assertThat("Should get all images", searchResponse.getHits().getTotalHits(), equalTo((long) totalImages));
+            assertImageScore(searchResponse.getHits(), nameToSearch, 2.0f);
+        }
+        assertThat("Repeated lookup should hit the cache", ((Number) cacheStats("lookup_cache").get("hit_count")).longValue(), greaterThan(hitCount));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> cacheStats(String cache) throws IOException {
+        HttpResponse response = httpClient().method("GET").path("/_image/cache/_stats").execute();
+        assertThat(response.getBody(), response.getStatusCode(), equalTo(200));
+        return (Map<String, Object>) XContentHelper.convertToMap(response.getBody().getBytes("UTF-8"), false).v2().get(cache);
     }
 
     private void assertImageScore(SearchHits hits, String name, float score) {